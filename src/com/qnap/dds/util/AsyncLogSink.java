@@ -0,0 +1,225 @@
+package com.qnap.dds.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Log output that never holds up the thread logging.  Each record is
+ * encoded as UTF-8 into a slot of a ring allocated up front, and a
+ * background thread drains the ring to the output stream in large writes.
+ * <p>
+ * When the ring is full the record is dropped and counted instead of
+ * waiting for room.  Records longer than a slot are cut short.
+ * <p>
+ * Any number of threads may log.  Each slot carries a sequence number that
+ * tells whose turn it is: a logger claims the slot at the tail by moving
+ * the tail on, fills it, then hands it to the drain thread by bumping its
+ * sequence; the drain thread hands it back the same way once written out.
+ */
+public class AsyncLogSink implements Runnable {
+
+    /**
+     * How long the drain thread sleeps when it finds the ring empty.
+     * Loggers do not wake it, which would cost them a system call.
+     */
+    private static final long DRAIN_INTERVAL_NANOS = 1000000;
+
+    /**
+     * Size of the drain thread's write buffer.
+     */
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private final OutputStream out;
+    private final int recordSize;
+    private final int mask;
+    private final byte[] records;
+    private final int[] lengths;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    // Only touched by the drain thread
+    private final byte[] writeBuffer = new byte[WRITE_BUFFER_SIZE];
+    private long head;
+
+    private final Thread drainer;
+    private volatile boolean closed;
+
+    /**
+     * Starts draining into <code>out</code>.
+     * @param capacity number of records the ring holds, rounded up to a
+     *        power of two
+     * @param recordSize longest record in bytes, line separator included
+     */
+    public AsyncLogSink(OutputStream out, int capacity, int recordSize) {
+        if (recordSize < 2 || recordSize > WRITE_BUFFER_SIZE) {
+            throw new IllegalArgumentException("record size out of range: " + recordSize);
+        }
+        int slots = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        this.out = out;
+        this.recordSize = recordSize;
+        this.mask = slots - 1;
+        this.records = new byte[slots * recordSize];
+        this.lengths = new int[slots];
+        this.sequences = new AtomicLongArray(slots);
+        for (int slot = 0; slot < slots; slot++) {
+            sequences.set(slot, slot);
+        }
+        drainer = new Thread(this, "AsyncLogSink");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    /**
+     * Appends <code>text</code> and a line separator.
+     * @return false if the ring was full and the record was dropped
+     */
+    public boolean log(CharSequence text) {
+        long position = tail.get();
+        for (;;) {
+            long sequence = sequences.get((int) position & mask);
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = tail.get();
+            } else if (sequence < position) {
+                // The drain thread has not written this slot out yet
+                dropped.incrementAndGet();
+                return false;
+            } else {
+                // Another logger took the slot
+                position = tail.get();
+            }
+        }
+        int slot = (int) position & mask;
+        lengths[slot] = encode(text, slot * recordSize);
+        sequences.lazySet(slot, position + 1);
+        return true;
+    }
+
+    /**
+     * Writes <code>text</code> as UTF-8 into the slot starting at
+     * <code>offset</code>, cut short where needed to leave room for the
+     * line separator.
+     * @return the number of bytes written
+     */
+    private int encode(CharSequence text, int offset) {
+        int end = offset + recordSize - 1;
+        int at = offset;
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                if (at + 1 > end) {
+                    break;
+                }
+                records[at++] = (byte) c;
+            } else if (c < 0x800) {
+                if (at + 2 > end) {
+                    break;
+                }
+                records[at++] = (byte) (0xc0 | c >> 6);
+                records[at++] = (byte) (0x80 | c & 0x3f);
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                if (at + 4 > end) {
+                    break;
+                }
+                int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                records[at++] = (byte) (0xf0 | codePoint >> 18);
+                records[at++] = (byte) (0x80 | codePoint >> 12 & 0x3f);
+                records[at++] = (byte) (0x80 | codePoint >> 6 & 0x3f);
+                records[at++] = (byte) (0x80 | codePoint & 0x3f);
+            } else {
+                if (at + 3 > end) {
+                    break;
+                }
+                records[at++] = (byte) (0xe0 | c >> 12);
+                records[at++] = (byte) (0x80 | c >> 6 & 0x3f);
+                records[at++] = (byte) (0x80 | c & 0x3f);
+            }
+        }
+        records[at++] = '\n';
+        return at - offset;
+    }
+
+    /**
+     * Number of records dropped because the ring was full.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Writes out everything logged so far and stops the drain thread.  The
+     * output stream is flushed but left open.
+     */
+    public void close() {
+        closed = true;
+        LockSupport.unpark(drainer);
+        try {
+            drainer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*
+     * Body of the drain thread.
+     */
+    public void run() {
+        for (;;) {
+            // Read the flag first, so that the last drain sees every record
+            // logged before close()
+            boolean last = closed;
+            drain();
+            if (last) {
+                return;
+            }
+            LockSupport.parkNanos(this, DRAIN_INTERVAL_NANOS);
+        }
+    }
+
+    /**
+     * Writes out every filled slot, batching records into as few writes as
+     * the write buffer allows.
+     */
+    private void drain() {
+        int buffered = 0;
+        for (;;) {
+            int slot = (int) head & mask;
+            if (sequences.get(slot) != head + 1) {
+                break;
+            }
+            if (buffered + lengths[slot] > writeBuffer.length) {
+                write(buffered);
+                buffered = 0;
+            }
+            System.arraycopy(records, slot * recordSize, writeBuffer, buffered, lengths[slot]);
+            buffered += lengths[slot];
+            sequences.lazySet(slot, head + mask + 1);
+            head++;
+        }
+        if (buffered > 0) {
+            write(buffered);
+            try {
+                out.flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void write(int length) {
+        try {
+            out.write(writeBuffer, 0, length);
+        } catch (IOException e) {
+            // The records are lost, but logging goes on
+            e.printStackTrace();
+        }
+    }
+}
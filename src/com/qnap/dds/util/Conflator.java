@@ -0,0 +1,176 @@
+package com.qnap.dds.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Latest-value stage in front of a writer.  Updates are queued by key, and
+ * an update whose key already has one waiting replaces it instead of
+ * queueing behind it, so a key that changes faster than updates can be
+ * sent only ever has its newest value sent.
+ * <p>
+ * A background thread hands the waiting updates to a <code>Sender</code>,
+ * in the order their keys first started waiting, then waits for more.
+ * With an interval set, it sends at most once per interval, and every key
+ * that changed several times in between is sent once.
+ */
+public class Conflator<K, V> implements Runnable {
+
+    /**
+     * Sends one update on behalf of the conflator.  Only ever called from
+     * the conflator's thread.
+     */
+    public interface Sender<K, V> {
+        void send(K key, V value);
+    }
+
+    private final Sender<K, V> sender;
+    private final long intervalNanos;
+
+    // Guarded by this.  The send thread swaps the two maps, and sends from
+    // the one it took outside the lock
+    private Map<K, V> pending = new LinkedHashMap<K, V>();
+    private Map<K, V> sending = new LinkedHashMap<K, V>();
+    private boolean closed;
+    private long offered;
+    private long coalesced;
+
+    // Only written by the send thread
+    private volatile long sent;
+
+    private final Thread thread;
+
+    /**
+     * Starts the send thread.
+     * @param intervalNanos least time between two rounds of sends, or 0 to
+     *        send as soon as the previous round is done
+     */
+    public Conflator(Sender<K, V> sender, long intervalNanos) {
+        this.sender = sender;
+        this.intervalNanos = intervalNanos;
+        thread = new Thread(this, "Conflator");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues <code>value</code> as the latest for <code>key</code>,
+     * replacing any value of the key not sent yet.  Never blocks on the
+     * sender.
+     * @return false if the update replaced one, true if it was queued
+     */
+    public synchronized boolean offer(K key, V value) {
+        if (closed) {
+            throw new IllegalStateException("conflator closed");
+        }
+        offered++;
+        if (pending.put(key, value) != null) {
+            coalesced++;
+            return false;
+        }
+        if (pending.size() == 1) {
+            notify();
+        }
+        return true;
+    }
+
+    /**
+     * Number of updates offered so far.
+     */
+    public synchronized long getOffered() {
+        return offered;
+    }
+
+    /**
+     * Number of updates replaced by a newer one for the same key before
+     * they were sent.
+     */
+    public synchronized long getCoalesced() {
+        return coalesced;
+    }
+
+    /**
+     * Number of updates handed to the sender so far.
+     */
+    public long getSent() {
+        return sent;
+    }
+
+    /**
+     * Sends whatever is still waiting and stops the send thread.  Nothing
+     * may be offered afterwards.  Closing again does nothing.
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notify();
+        }
+        LockSupport.unpark(thread);
+        boolean interrupted = false;
+        for (;;) {
+            try {
+                thread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*
+     * Body of the send thread.
+     */
+    public void run() {
+        long nextRound = System.nanoTime();
+        for (;;) {
+            Map<K, V> updates;
+            boolean last;
+            synchronized (this) {
+                while (pending.isEmpty() && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // Only close() stops the thread
+                    }
+                }
+                updates = pending;
+                pending = sending;
+                sending = updates;
+                last = closed;
+            }
+            for (Map.Entry<K, V> update : updates.entrySet()) {
+                try {
+                    sender.send(update.getKey(), update.getValue());
+                } catch (RuntimeException e) {
+                    // The update is lost, but the others still go out
+                    e.printStackTrace();
+                }
+                sent++;
+            }
+            updates.clear();
+            if (last) {
+                return;
+            }
+
+            // Let updates pile up, and conflate, until the next round; a close
+            // cuts the wait short
+            nextRound += intervalNanos;
+            long now = System.nanoTime();
+            while (nextRound - now > 0 && !isClosed()) {
+                LockSupport.parkNanos(this, nextRound - now);
+                now = System.nanoTime();
+            }
+            if (nextRound - now < 0) {
+                nextRound = now;
+            }
+        }
+    }
+
+    private synchronized boolean isClosed() {
+        return closed;
+    }
+}
@@ -0,0 +1,26 @@
+package com.qnap.dds.util;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+
+/**
+ * CPU time as far as the JVM reports it, for benchmarks that weigh what a
+ * mode costs besides how fast it goes.
+ */
+public final class CpuTime {
+
+    private CpuTime() {
+    }
+
+    /**
+     * CPU time used by the whole process so far, or -1 if the JVM does not
+     * report it.
+     */
+    public static long processNanos() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+        return -1;
+    }
+}
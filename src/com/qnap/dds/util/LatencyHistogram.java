@@ -0,0 +1,190 @@
+package com.qnap.dds.util;
+
+import java.io.PrintStream;
+
+/**
+ * Fixed-memory latency histogram.  Values are recorded in nanoseconds into
+ * log-linear buckets: every power of two is split into
+ * <code>SUB_BUCKET_COUNT</code> linear sub-buckets, so any recorded value is
+ * reproduced within 1/128 of its magnitude.  All storage is allocated up
+ * front and <code>recordValue</code> never allocates.
+ * <p>
+ * A histogram is meant to have a single writer.  Readers such as the final
+ * report should only look at it once the writer has stopped.
+ */
+public class LatencyHistogram {
+
+    /**
+     * Number of bits of precision kept below the most significant bit.
+     */
+    private static final int SUB_BUCKET_BITS = 7;
+
+    /**
+     * Number of linear sub-buckets per power of two.
+     */
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Largest magnitude (as a power of two) tracked with full precision.
+     * 2^36 ns is a little over a minute; anything slower is clamped into the
+     * top bucket but still reported exactly by <code>getMaxValue</code>.
+     */
+    private static final int MAX_MAGNITUDE = 36;
+
+    private final long[] counts =
+        new long[(MAX_MAGNITUDE - SUB_BUCKET_BITS + 2) * SUB_BUCKET_COUNT];
+
+    private long totalCount;
+    private long minValue = Long.MAX_VALUE;
+    private long maxValue;
+    private long sum;
+
+    /**
+     * Records a single latency value.
+     * @param value latency in nanoseconds, negative values are recorded as 0
+     */
+    public void recordValue(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts[indexOf(value)]++;
+        totalCount++;
+        sum += value;
+        if (value < minValue) {
+            minValue = value;
+        }
+        if (value > maxValue) {
+            maxValue = value;
+        }
+    }
+
+    /**
+     * Records a latency value measured by a loop that sends every
+     * <code>expectedInterval</code> but waits for each reply before sending
+     * the next request.  A value longer than the interval means sends were
+     * held back, so the samples they would have produced are back-filled
+     * with values decreasing by <code>expectedInterval</code>, as
+     * HdrHistogram does to correct for coordinated omission.
+     * @param value latency in nanoseconds
+     * @param expectedInterval nanoseconds between two sends, 0 to record
+     *        <code>value</code> alone
+     */
+    public void recordValueWithExpectedInterval(long value, long expectedInterval) {
+        recordValue(value);
+        if (expectedInterval <= 0) {
+            return;
+        }
+        for (long missing = value - expectedInterval; missing >= expectedInterval;
+                missing -= expectedInterval) {
+            recordValue(missing);
+        }
+    }
+
+    /**
+     * Adds all values recorded in <code>other</code> to this histogram.
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        totalCount += other.totalCount;
+        sum += other.sum;
+        if (other.minValue < minValue) {
+            minValue = other.minValue;
+        }
+        if (other.maxValue > maxValue) {
+            maxValue = other.maxValue;
+        }
+    }
+
+    /**
+     * Forgets every recorded value.
+     */
+    public void reset() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = 0;
+        }
+        totalCount = 0;
+        sum = 0;
+        minValue = Long.MAX_VALUE;
+        maxValue = 0;
+    }
+
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    public long getMinValue() {
+        return totalCount == 0 ? 0 : minValue;
+    }
+
+    public long getMaxValue() {
+        return maxValue;
+    }
+
+    public double getMean() {
+        return totalCount == 0 ? 0.0 : (double) sum / totalCount;
+    }
+
+    /**
+     * Returns the value below which <code>percentile</code> percent of the
+     * recorded values fall, rounded up to the top of its bucket.
+     * @param percentile a percentile between 0 and 100
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (totalCount == 0) {
+            return 0;
+        }
+        long target = (long) Math.ceil(percentile / 100.0 * totalCount);
+        if (target < 1) {
+            target = 1;
+        }
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return Math.min(highestValueAt(i), maxValue);
+            }
+        }
+        return maxValue;
+    }
+
+    /**
+     * Prints a one-line summary in microseconds.
+     * @param out stream to print to
+     * @param label prefix identifying what was measured
+     */
+    public void print(PrintStream out, String label) {
+        out.printf("%s: n=%d min=%.1f p50=%.1f p99=%.1f p99.9=%.1f max=%.1f mean=%.1f (us)%n",
+                label,
+                totalCount,
+                getMinValue() / 1000.0,
+                getValueAtPercentile(50.0) / 1000.0,
+                getValueAtPercentile(99.0) / 1000.0,
+                getValueAtPercentile(99.9) / 1000.0,
+                getMaxValue() / 1000.0,
+                getMean() / 1000.0);
+    }
+
+    private int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        if (magnitude > MAX_MAGNITUDE) {
+            return counts.length - 1;
+        }
+        int shift = magnitude - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKET_COUNT;
+        return (shift + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    private static long highestValueAt(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        long lowest = (long) (SUB_BUCKET_COUNT + index % SUB_BUCKET_COUNT) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
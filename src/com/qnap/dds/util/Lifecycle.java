@@ -0,0 +1,112 @@
+package com.qnap.dds.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a program running until it is told to stop, then shuts it down in
+ * order.
+ * <p>
+ * The main thread blocks in <code>awaitStop</code> until
+ * <code>stop</code> is called, from a listener or any other thread, or
+ * until the JVM is asked to exit by SIGTERM or CTRL+C.  It then calls
+ * <code>shutdown</code>, which runs the stages in the order they were
+ * added: typically stop taking in data, drain what was taken, then delete
+ * the DDS entities.
+ * <p>
+ * The JVM halts as soon as its shutdown hooks return, so on a signal the
+ * hook waits for the stages to finish, up to a timeout.
+ */
+public class Lifecycle {
+
+    private final CountDownLatch stopRequested = new CountDownLatch(1);
+    private final CountDownLatch shutdownDone = new CountDownLatch(1);
+    private final List<String> stageNames = new ArrayList<String>();
+    private final List<Runnable> stages = new ArrayList<Runnable>();
+    private final Thread hook;
+
+    /**
+     * Hooks SIGTERM and CTRL+C.
+     * @param timeoutMillis how long a signal waits for the shutdown to
+     *        finish before the JVM halts regardless
+     */
+    public Lifecycle(final long timeoutMillis) {
+        hook = new Thread("Lifecycle shutdown hook") {
+            public void run() {
+                Lifecycle.this.stop();
+                try {
+                    if (!shutdownDone.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                        System.err.println("Shutdown did not finish in " + timeoutMillis + " ms");
+                    }
+                } catch (InterruptedException e) {
+                    // Halt right away
+                }
+            }
+        };
+        Runtime.getRuntime().addShutdownHook(hook);
+    }
+
+    /**
+     * Adds a step to run on shutdown, after those already added.  Must not
+     * be called once shutdown has begun.
+     */
+    public synchronized void addStage(String name, Runnable stage) {
+        stageNames.add(name);
+        stages.add(stage);
+    }
+
+    /**
+     * Wakes up <code>awaitStop</code>.  May be called from any thread, any
+     * number of times.
+     */
+    public void stop() {
+        stopRequested.countDown();
+    }
+
+    public boolean isStopping() {
+        return stopRequested.getCount() == 0;
+    }
+
+    /**
+     * Blocks until <code>stop</code> is called or a signal arrives.
+     */
+    public void awaitStop() {
+        boolean interrupted = false;
+        for (;;) {
+            try {
+                stopRequested.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Runs every stage in order.  A stage that fails is reported and the
+     * next one runs anyway.
+     */
+    public synchronized void shutdown() {
+        for (int i = 0; i < stages.size(); i++) {
+            try {
+                stages.get(i).run();
+            } catch (RuntimeException e) {
+                System.err.println("Shutdown stage failed: " + stageNames.get(i));
+                e.printStackTrace();
+            }
+        }
+        stages.clear();
+        stageNames.clear();
+        shutdownDone.countDown();
+        try {
+            Runtime.getRuntime().removeShutdownHook(hook);
+        } catch (IllegalStateException e) {
+            // Shutting down on a signal, the hook is already running
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.qnap.dds.util;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Waits for points in time on the <code>System.nanoTime</code> clock more
+ * precisely than parking alone.  A parked thread wakes up tens of
+ * microseconds late, and a spinning one burns a core for the whole wait,
+ * so a wait parks until <code>spinNanos</code> before its deadline and
+ * spins out the rest.
+ */
+public class SpinParkScheduler {
+
+    private final long spinNanos;
+
+    /**
+     * @param spinNanos how long before each deadline to stop parking and
+     *        start spinning; at least the usual wake-up delay of a parked
+     *        thread
+     */
+    public SpinParkScheduler(long spinNanos) {
+        this.spinNanos = spinNanos;
+    }
+
+    /**
+     * Returns once <code>System.nanoTime()</code> has reached
+     * <code>deadline</code>, right away if it already has.
+     * @return how late the wait ended, in nanoseconds
+     */
+    public long awaitDeadline(long deadline) {
+        long now = System.nanoTime();
+        while (deadline - now > spinNanos) {
+            LockSupport.parkNanos(this, deadline - now - spinNanos);
+            now = System.nanoTime();
+        }
+        while (deadline - now > 0) {
+            now = System.nanoTime();
+        }
+        return now - deadline;
+    }
+}
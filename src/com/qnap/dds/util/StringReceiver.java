@@ -0,0 +1,234 @@
+package com.qnap.dds.util;
+
+import com.rti.dds.domain.DomainParticipant;
+import com.rti.dds.infrastructure.ConditionSeq;
+import com.rti.dds.infrastructure.Duration_t;
+import com.rti.dds.infrastructure.GuardCondition;
+import com.rti.dds.infrastructure.RETCODE_ERROR;
+import com.rti.dds.infrastructure.RETCODE_NO_DATA;
+import com.rti.dds.infrastructure.RETCODE_TIMEOUT;
+import com.rti.dds.infrastructure.StatusKind;
+import com.rti.dds.infrastructure.WaitSet;
+import com.rti.dds.subscription.DataReader;
+import com.rti.dds.subscription.DataReaderAdapter;
+import com.rti.dds.subscription.DataReaderQos;
+import com.rti.dds.subscription.InstanceStateKind;
+import com.rti.dds.subscription.ReadCondition;
+import com.rti.dds.subscription.SampleInfo;
+import com.rti.dds.subscription.SampleInfoSeq;
+import com.rti.dds.subscription.SampleStateKind;
+import com.rti.dds.subscription.Subscriber;
+import com.rti.dds.subscription.ViewStateKind;
+import com.rti.dds.topic.TopicDescription;
+import com.rti.dds.type.builtin.StringDataReader;
+import com.rti.dds.util.StringSeq;
+
+/**
+ * Reads a builtin String topic and hands every sample to a
+ * <code>Handler</code>, in one of three modes:
+ * <ul>
+ * <li><code>LISTENER</code>: from the reader's listener, on a middleware
+ *     thread, which is held up for as long as the handler runs.</li>
+ * <li><code>WAITSET</code>: from a dedicated thread that blocks on a WaitSet
+ *     with a ReadCondition, leaving the middleware threads free.</li>
+ * <li><code>SPIN</code>: from a dedicated thread that polls the
+ *     ReadCondition without ever blocking.  Lowest latency, at the cost of
+ *     a whole core.</li>
+ * </ul>
+ * In every mode samples are taken in batches the reader loans out, one
+ * call per batch rather than per sample.
+ */
+public class StringReceiver extends DataReaderAdapter implements Runnable {
+
+    public static final String LISTENER = "listener";
+    public static final String WAITSET = "waitset";
+    public static final String SPIN = "spin";
+
+    /**
+     * Most samples taken from the reader at once.
+     */
+    private static final int MAX_SAMPLES_PER_TAKE = 256;
+
+    /**
+     * Receives the samples, always from the same thread except in
+     * <code>LISTENER</code> mode, where the middleware picks it.
+     */
+    public interface Handler {
+        void onSample(String sample);
+    }
+
+    private final Handler handler;
+    private final String mode;
+    private final DomainParticipant participant;
+    private StringDataReader reader;
+
+    // Loaned by the reader on every take, and returned once processed
+    private final StringSeq samples = new StringSeq();
+    private final SampleInfoSeq infos = new SampleInfoSeq();
+
+    // Only used with a dedicated thread
+    private ReadCondition readCondition;
+    private WaitSet waitSet;
+    private GuardCondition stopCondition;
+    private Thread thread;
+    private volatile boolean stopped;
+
+    private StringReceiver(DomainParticipant participant, String mode, Handler handler) {
+        this.participant = participant;
+        this.mode = mode;
+        this.handler = handler;
+    }
+
+    /**
+     * Creates a reader for <code>topic</code> and starts handing its samples
+     * to <code>handler</code>.
+     * @param mode <code>LISTENER</code>, <code>WAITSET</code> or
+     *        <code>SPIN</code>
+     * @return the new receiver, or null if the mode is unknown or the reader
+     *         could not be created
+     */
+    public static StringReceiver open(DomainParticipant participant, TopicDescription topic,
+            String mode, Handler handler) {
+        return open(participant, topic, mode, handler, Subscriber.DATAREADER_QOS_DEFAULT);
+    }
+
+    /**
+     * Same as <code>open(participant, topic, mode, handler)</code>, with the
+     * reader created with <code>qos</code>.
+     */
+    public static StringReceiver open(DomainParticipant participant, TopicDescription topic,
+            String mode, Handler handler, DataReaderQos qos) {
+        if (!mode.equals(LISTENER) && !mode.equals(WAITSET) && !mode.equals(SPIN)) {
+            System.err.println("Unknown reader mode: " + mode);
+            return null;
+        }
+        StringReceiver receiver = new StringReceiver(participant, mode, handler);
+        boolean listening = mode.equals(LISTENER);
+        receiver.reader = (StringDataReader) participant.create_datareader(
+                topic,
+                qos,
+                listening ? receiver : null,
+                listening ? StatusKind.DATA_AVAILABLE_STATUS : StatusKind.STATUS_MASK_NONE);
+        if (receiver.reader == null) {
+            System.err.println("Unable to create DDS Data Reader");
+            return null;
+        }
+        if (!listening) {
+            receiver.readCondition = receiver.reader.create_readcondition(
+                    SampleStateKind.NOT_READ_SAMPLE_STATE,
+                    ViewStateKind.ANY_VIEW_STATE,
+                    InstanceStateKind.ANY_INSTANCE_STATE);
+            if (mode.equals(WAITSET)) {
+                receiver.stopCondition = new GuardCondition();
+                receiver.waitSet = new WaitSet();
+                receiver.waitSet.attach_condition(receiver.readCondition);
+                receiver.waitSet.attach_condition(receiver.stopCondition);
+            }
+            receiver.thread = new Thread(receiver, "StringReceiver " + mode);
+            receiver.thread.start();
+        }
+        return receiver;
+    }
+
+    /**
+     * Stops handing over samples as they arrive, hands over those the
+     * reader holds by then, and deletes the reader.
+     */
+    public void close() {
+        if (thread == null) {
+            reader.set_listener(null, StatusKind.STATUS_MASK_NONE);
+        } else {
+            stopped = true;
+            if (stopCondition != null) {
+                stopCondition.set_trigger_value(true);
+            }
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        takeAll(reader);
+        if (thread != null) {
+            if (waitSet != null) {
+                waitSet.detach_condition(readCondition);
+                waitSet.detach_condition(stopCondition);
+                waitSet.delete();
+                stopCondition.delete();
+            }
+            reader.delete_readcondition(readCondition);
+        }
+        participant.delete_datareader(reader);
+    }
+
+    public String getMode() {
+        return mode;
+    }
+
+    /*
+     * This method gets called back by DDS when one or more data samples have
+     * been received.
+     */
+    public void on_data_available(DataReader reader) {
+        // May come before open() has stored the reader
+        takeAll((StringDataReader) reader);
+    }
+
+    /*
+     * Body of the dedicated thread.
+     */
+    public void run() {
+        if (mode.equals(SPIN)) {
+            while (!stopped) {
+                if (readCondition.get_trigger_value()) {
+                    takeAll(reader);
+                }
+            }
+            return;
+        }
+        ConditionSeq active = new ConditionSeq();
+        while (!stopped) {
+            try {
+                waitSet.wait(active, Duration_t.DURATION_INFINITE);
+            } catch (RETCODE_TIMEOUT timeout) {
+                continue;
+            }
+            takeAll(reader);
+        }
+    }
+
+    /**
+     * Takes and handles every sample the reader holds.  A batch shorter than
+     * the maximum means the reader is empty, so RETCODE_NO_DATA only ends
+     * calls that find nothing.  Synchronized for close(), which may run
+     * while the listener is still in a callback.
+     */
+    private synchronized void takeAll(StringDataReader reader) {
+        int taken;
+        do {
+            try {
+                reader.take(samples, infos, MAX_SAMPLES_PER_TAKE,
+                        SampleStateKind.ANY_SAMPLE_STATE,
+                        ViewStateKind.ANY_VIEW_STATE,
+                        InstanceStateKind.ANY_INSTANCE_STATE);
+            } catch (RETCODE_NO_DATA noData) {
+                // No more data to read
+                return;
+            } catch (RETCODE_ERROR e) {
+                // An error occurred
+                e.printStackTrace();
+                return;
+            }
+            taken = samples.size();
+            try {
+                for (int i = 0; i < taken; i++) {
+                    if (((SampleInfo) infos.get(i)).valid_data) {
+                        handler.onSample((String) samples.get(i));
+                    }
+                }
+            } finally {
+                reader.return_loan(samples, infos);
+            }
+        } while (taken == MAX_SAMPLES_PER_TAKE);
+    }
+}
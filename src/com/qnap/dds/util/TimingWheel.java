@@ -0,0 +1,295 @@
+package com.qnap.dds.util;
+
+/**
+ * Hierarchical hashed timing wheel.
+ * <p>
+ * Time is cut into ticks of <code>tickNanos</code>.  Level 0 has one slot per
+ * tick, and each level above it has slots that span a whole rotation of the
+ * level below.  A timer is hashed into the lowest level whose rotation
+ * covers its deadline and moves down a level each time its slot comes
+ * round, so scheduling and cancelling are O(1) no matter how many timers are
+ * pending, and every timer that expires on the same tick is handled
+ * together.
+ * <p>
+ * Timers are not objects: they are rows in a set of parallel primitive
+ * arrays, chained into per-slot doubly linked lists by index, and identified
+ * by a <code>long</code> handle that embeds a generation count so a stale
+ * handle cannot cancel a recycled row.
+ * <p>
+ * The wheel is not thread safe.  It is meant to be driven by a single thread
+ * that calls <code>advanceTo</code> and does all scheduling and cancelling,
+ * either directly or from within the <code>Handler</code>.
+ * @see <a href="http://www.cs.columbia.edu/~nahum/w6998/papers/ton97-timing-wheels.pdf">
+ *      Varghese and Lauck, Hashed and Hierarchical Timing Wheels</a>
+ */
+public class TimingWheel {
+
+    /**
+     * Receives expired timers in batches.
+     */
+    public interface Handler {
+        /**
+         * Called by <code>advanceTo</code> with the timers that have expired.
+         * The arrays are reused between calls; only their first
+         * <code>count</code> entries are meaningful.
+         * @param kinds the kind given to each timer when it was scheduled
+         * @param payloads the payload given to each timer when it was scheduled
+         * @param count number of expired timers
+         */
+        void onExpired(int[] kinds, long[] payloads, int count);
+    }
+
+    /**
+     * Never returned by <code>schedule</code>.
+     */
+    public static final long NO_TIMER = -1;
+
+    private static final int NIL = -1;
+
+    private final Handler handler;
+    private final long tickNanos;
+    private final long startNanos;
+    private final int slotBits;
+    private final int slotMask;
+    private final int levels;
+
+    // Head timer of each slot, level by level
+    private final int[] heads;
+
+    // Timer rows
+    private long[] deadlines;
+    private long[] payloads;
+    private int[] kinds;
+    private int[] next;
+    private int[] prev;
+    private int[] owners;       // index into heads, NIL when the row is free
+    private int[] generations;
+    private int freeHead = NIL;
+    private int size;
+
+    private long currentTick;
+
+    // Expired timers waiting to be handed to the handler
+    private final int[] expiredKinds;
+    private final long[] expiredPayloads;
+    private int expiredCount;
+
+    /**
+     * Creates a wheel whose tick 0 is now.
+     * @param tickNanos duration of a tick
+     * @param slotBits log2 of the number of slots per level
+     * @param levels number of levels
+     * @param initialCapacity number of timers to make room for up front
+     * @param batchSize maximum number of timers per <code>Handler</code> call
+     * @param handler receives expired timers
+     */
+    public TimingWheel(long tickNanos, int slotBits, int levels,
+            int initialCapacity, int batchSize, Handler handler) {
+        if (tickNanos <= 0 || slotBits < 1 || levels < 1 || slotBits * levels > 62
+                || initialCapacity < 1 || batchSize < 1) {
+            throw new IllegalArgumentException("invalid timing wheel geometry");
+        }
+        if (handler == null) {
+            throw new IllegalArgumentException("null handler");
+        }
+        this.handler = handler;
+        this.tickNanos = tickNanos;
+        this.startNanos = System.nanoTime();
+        this.slotBits = slotBits;
+        this.slotMask = (1 << slotBits) - 1;
+        this.levels = levels;
+        this.heads = new int[levels << slotBits];
+        for (int i = 0; i < heads.length; i++) {
+            heads[i] = NIL;
+        }
+        this.expiredKinds = new int[batchSize];
+        this.expiredPayloads = new long[batchSize];
+        grow(initialCapacity);
+    }
+
+    /**
+     * Number of pending timers.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Time at which the next tick will be due.
+     */
+    public long nextTickNanos() {
+        return startNanos + (currentTick + 1) * tickNanos;
+    }
+
+    /**
+     * Schedules a timer.  Deadlines are rounded up to a tick boundary and are
+     * at least one tick away.
+     * @param deadlineNanos <code>System.nanoTime</code> at which to expire
+     * @param kind handed back to the handler, free for the caller to use
+     * @param payload handed back to the handler, free for the caller to use
+     * @return a handle for <code>cancel</code>
+     */
+    public long schedule(long deadlineNanos, int kind, long payload) {
+        long deadlineTick = (deadlineNanos - startNanos + tickNanos - 1) / tickNanos;
+        if (deadlineTick <= currentTick) {
+            deadlineTick = currentTick + 1;
+        } else if (deadlineTick - currentTick >= 1L << (slotBits * levels)) {
+            throw new IllegalArgumentException("deadline beyond the wheel's range");
+        }
+        if (freeHead == NIL) {
+            grow(deadlines.length * 2);
+        }
+        int timer = freeHead;
+        freeHead = next[timer];
+        deadlines[timer] = deadlineTick;
+        kinds[timer] = kind;
+        payloads[timer] = payload;
+        link(timer);
+        size++;
+        return ((long) (generations[timer] & Integer.MAX_VALUE) << 32) | timer;
+    }
+
+    /**
+     * Cancels a pending timer.
+     * @param handle a handle returned by <code>schedule</code>
+     * @return false if the timer had already expired or been cancelled
+     */
+    public boolean cancel(long handle) {
+        if (handle < 0) {
+            return false;
+        }
+        int timer = (int) handle;
+        if (timer >= owners.length || owners[timer] == NIL
+                || (generations[timer] & Integer.MAX_VALUE) != (int) (handle >>> 32)) {
+            return false;
+        }
+        unlink(timer);
+        free(timer);
+        return true;
+    }
+
+    /**
+     * Processes every tick up to <code>nowNanos</code>, handing the timers
+     * that expire to the handler in batches.
+     */
+    public void advanceTo(long nowNanos) {
+        long targetTick = (nowNanos - startNanos) / tickNanos;
+        while (currentTick < targetTick) {
+            currentTick++;
+            // Cascade from the top so timers can fall through several levels
+            for (int level = levels - 1; level > 0; level--) {
+                if ((currentTick & ((1L << (slotBits * level)) - 1)) == 0) {
+                    cascade(level);
+                }
+            }
+            expire((int) (currentTick & slotMask));
+        }
+        flush();
+    }
+
+    private void cascade(int level) {
+        int owner = (level << slotBits) | (int) ((currentTick >>> (slotBits * level)) & slotMask);
+        int timer = heads[owner];
+        heads[owner] = NIL;
+        while (timer != NIL) {
+            int following = next[timer];
+            link(timer);
+            timer = following;
+        }
+    }
+
+    private void expire(int owner) {
+        // Unlink one timer at a time so the handler may cancel the rest
+        while (heads[owner] != NIL) {
+            if (expiredCount == expiredKinds.length) {
+                flush();
+                continue;
+            }
+            int timer = heads[owner];
+            unlink(timer);
+            expiredKinds[expiredCount] = kinds[timer];
+            expiredPayloads[expiredCount] = payloads[timer];
+            expiredCount++;
+            free(timer);
+        }
+    }
+
+    private void flush() {
+        if (expiredCount > 0) {
+            int count = expiredCount;
+            expiredCount = 0;
+            handler.onExpired(expiredKinds, expiredPayloads, count);
+        }
+    }
+
+    private void link(int timer) {
+        long deadlineTick = deadlines[timer];
+        long delta = deadlineTick - currentTick;
+        int level = 0;
+        while (level < levels - 1 && delta >= 1L << (slotBits * (level + 1))) {
+            level++;
+        }
+        int owner = (level << slotBits) | (int) ((deadlineTick >>> (slotBits * level)) & slotMask);
+        int head = heads[owner];
+        next[timer] = head;
+        prev[timer] = NIL;
+        if (head != NIL) {
+            prev[head] = timer;
+        }
+        heads[owner] = timer;
+        owners[timer] = owner;
+    }
+
+    private void unlink(int timer) {
+        int before = prev[timer];
+        int after = next[timer];
+        if (before == NIL) {
+            heads[owners[timer]] = after;
+        } else {
+            next[before] = after;
+        }
+        if (after != NIL) {
+            prev[after] = before;
+        }
+    }
+
+    private void free(int timer) {
+        owners[timer] = NIL;
+        generations[timer]++;
+        next[timer] = freeHead;
+        freeHead = timer;
+        size--;
+    }
+
+    private void grow(int capacity) {
+        int oldCapacity = deadlines == null ? 0 : deadlines.length;
+        deadlines = copyOf(deadlines, capacity);
+        payloads = copyOf(payloads, capacity);
+        kinds = copyOf(kinds, capacity);
+        next = copyOf(next, capacity);
+        prev = copyOf(prev, capacity);
+        owners = copyOf(owners, capacity);
+        generations = copyOf(generations, capacity);
+        for (int timer = capacity - 1; timer >= oldCapacity; timer--) {
+            owners[timer] = NIL;
+            next[timer] = freeHead;
+            freeHead = timer;
+        }
+    }
+
+    private static long[] copyOf(long[] array, int length) {
+        long[] copy = new long[length];
+        if (array != null) {
+            System.arraycopy(array, 0, copy, 0, array.length);
+        }
+        return copy;
+    }
+
+    private static int[] copyOf(int[] array, int length) {
+        int[] copy = new int[length];
+        if (array != null) {
+            System.arraycopy(array, 0, copy, 0, array.length);
+        }
+        return copy;
+    }
+}
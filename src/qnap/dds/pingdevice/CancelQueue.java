@@ -0,0 +1,80 @@
+package qnap.dds.pingdevice;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.qnap.dds.util.TimingWheel;
+
+/**
+ * Queue of timer handles to cancel, passed from the reply listener to the
+ * sender thread that owns the <code>TimingWheel</code>.
+ * <p>
+ * Any thread may <code>offer</code> but only the sender may
+ * <code>poll</code>.  The ring is allocated up front and nothing is boxed;
+ * each slot carries a sequence number that tells whether it is free, filled
+ * or being filled, so producers never take a lock.  When the ring is full
+ * the handle is dropped, and its timer is simply left to expire.
+ */
+public class CancelQueue {
+
+    private final long[] handles;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private final int mask;
+    private long head;      // only touched by the consumer
+
+    /**
+     * Creates a queue holding at least <code>capacity</code> handles.
+     */
+    public CancelQueue(int capacity) {
+        int slots = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        handles = new long[slots];
+        sequences = new AtomicLongArray(slots);
+        for (int slot = 0; slot < slots; slot++) {
+            sequences.set(slot, slot);
+        }
+        mask = slots - 1;
+    }
+
+    /**
+     * Queues <code>handle</code>.
+     * @return false if the queue was full and the handle was dropped
+     */
+    public boolean offer(long handle) {
+        long position = tail.get();
+        for (;;) {
+            long sequence = sequences.get((int) position & mask);
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = tail.get();
+            } else if (sequence < position) {
+                return false;
+            } else {
+                // Another producer took the slot
+                position = tail.get();
+            }
+        }
+        int slot = (int) position & mask;
+        handles[slot] = handle;
+        sequences.lazySet(slot, position + 1);
+        return true;
+    }
+
+    /**
+     * Takes the next queued handle.
+     * @return a handle, or <code>TimingWheel.NO_TIMER</code> if the queue is
+     *         empty
+     */
+    public long poll() {
+        int slot = (int) head & mask;
+        if (sequences.get(slot) != head + 1) {
+            return TimingWheel.NO_TIMER;
+        }
+        long handle = handles[slot];
+        sequences.lazySet(slot, head + mask + 1);
+        head++;
+        return handle;
+    }
+}
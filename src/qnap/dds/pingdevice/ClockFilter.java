@@ -0,0 +1,127 @@
+package qnap.dds.pingdevice;
+
+import java.io.PrintStream;
+
+/**
+ * Per-device clock offset estimate from NTP's four timestamps: the agent's
+ * send time t1, the responder's receive and transmit times t2 and t3, and
+ * the agent's receive time t4.
+ * <p>
+ * Each sample gives an offset <code>((t2 - t1) + (t3 - t4)) / 2</code> and
+ * a network delay <code>(t4 - t1) - (t3 - t2)</code>.  Queueing only ever
+ * adds delay, and skews the offset by up to half of what it adds, so like
+ * NTP's clock filter the estimate is the offset of the lowest-delay sample
+ * among the last <code>SAMPLES</code>.
+ * <p>
+ * The offset formula assumes both directions take equal time, so on its own
+ * it folds half of any steady route asymmetry into the offset.  Uplink and
+ * downlink split exactly only where the clocks are otherwise kept in step;
+ * elsewhere the split shows how asymmetry changes over time.
+ * <p>
+ * Only the listener thread may add samples.
+ */
+public class ClockFilter {
+
+    private static final int SAMPLES = 8;
+
+    private final long[] delays;        // SAMPLES per device, Long.MAX_VALUE if empty
+    private final long[] offsets;
+    private final int[] next;
+    private final long[] estimates;
+    private final boolean[] estimated;
+
+    public ClockFilter(int deviceCount) {
+        delays = new long[deviceCount * SAMPLES];
+        offsets = new long[deviceCount * SAMPLES];
+        next = new int[deviceCount];
+        estimates = new long[deviceCount];
+        estimated = new boolean[deviceCount];
+        reset(deviceCount);
+    }
+
+    /**
+     * Forgets the samples of the first <code>devices</code> devices.
+     */
+    public void reset(int devices) {
+        for (int device = 0; device < devices; device++) {
+            for (int i = 0; i < SAMPLES; i++) {
+                delays[device * SAMPLES + i] = Long.MAX_VALUE;
+            }
+            next[device] = 0;
+            estimated[device] = false;
+        }
+    }
+
+    /**
+     * Adds a sample for <code>device</code>.
+     * @return the filtered offset of the device's clock from the agent's
+     */
+    public long addSample(int device, long t1, long t2, long t3, long t4) {
+        int base = device * SAMPLES;
+        int slot = base + next[device];
+        delays[slot] = (t4 - t1) - (t3 - t2);
+        offsets[slot] = ((t2 - t1) + (t3 - t4)) / 2;
+        next[device] = (next[device] + 1) % SAMPLES;
+
+        int best = base;
+        for (int i = base + 1; i < base + SAMPLES; i++) {
+            if (delays[i] < delays[best]) {
+                best = i;
+            }
+        }
+        estimates[device] = offsets[best];
+        estimated[device] = true;
+        return offsets[best];
+    }
+
+    /**
+     * True once <code>device</code> has had a sample.
+     */
+    public boolean hasEstimate(int device) {
+        return estimated[device];
+    }
+
+    /**
+     * Filtered offset of the device's clock from the agent's, in
+     * nanoseconds: positive when the device is ahead.
+     */
+    public long getOffset(int device) {
+        return estimates[device];
+    }
+
+    /**
+     * Adds the offsets of the first <code>devices</code> devices to
+     * <code>summary</code>.  Only to be called once replies have stopped.
+     */
+    public void addTo(Summary summary, int devices) {
+        for (int device = 0; device < devices; device++) {
+            if (estimated[device]) {
+                summary.min = Math.min(summary.min, estimates[device]);
+                summary.max = Math.max(summary.max, estimates[device]);
+                summary.sum += estimates[device];
+                summary.devices++;
+            }
+        }
+    }
+
+    /**
+     * Fleet-wide offsets, which can be collected from several ClockFilters.
+     */
+    public static class Summary {
+        private long min = Long.MAX_VALUE;
+        private long max = Long.MIN_VALUE;
+        private double sum;
+        private int devices;
+
+        /**
+         * Prints the lowest, mean and highest offset in microseconds, or
+         * nothing if no device had timestamped replies.
+         */
+        public void print(PrintStream out) {
+            if (devices > 0) {
+                out.printf("clock offset: devices=%d min=%.1f mean=%.1f max=%.1f (us)%n",
+                        devices, min / 1000.0, sum / devices / 1000.0, max / 1000.0);
+            }
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package qnap.dds.pingdevice;
+
+import com.rti.dds.domain.DomainParticipant;
+import com.rti.dds.domain.builtin.ParticipantBuiltinTopicData;
+import com.rti.dds.domain.builtin.ParticipantBuiltinTopicDataDataReader;
+import com.rti.dds.domain.builtin.ParticipantBuiltinTopicDataTypeSupport;
+import com.rti.dds.infrastructure.RETCODE_ERROR;
+import com.rti.dds.infrastructure.RETCODE_NO_DATA;
+import com.rti.dds.infrastructure.StatusKind;
+import com.rti.dds.publication.builtin.PublicationBuiltinTopicData;
+import com.rti.dds.publication.builtin.PublicationBuiltinTopicDataDataReader;
+import com.rti.dds.publication.builtin.PublicationBuiltinTopicDataTypeSupport;
+import com.rti.dds.subscription.DataReader;
+import com.rti.dds.subscription.DataReaderAdapter;
+import com.rti.dds.subscription.InstanceStateKind;
+import com.rti.dds.subscription.SampleInfo;
+import com.rti.dds.subscription.Subscriber;
+
+/**
+ * Keeps a <code>DeviceIndex</code> in step with the responders on the bus,
+ * using the DDS builtin discovery topics.
+ * <p>
+ * A PingResponder names its participant, behind
+ * <code>PingProtocol.RESPONDER_NAME_PREFIX</code>, and its reply writer
+ * after its device.  A device joins the index as soon as either is discovered, so it
+ * is known before its reply writer even exists.  It leaves the index when
+ * its participant goes away, whether deleted or lost, and its writers with
+ * it; a device whose participant was never seen leaves when the last of
+ * its writers on <code>PingProtocol.REPLY_TOPIC</code> does.  A responder
+ * that restarts may be rediscovered before its old entities are gone, so
+ * the index counts the participants and writers of each device rather than
+ * evicting on the first one lost.
+ */
+public class DeviceDiscovery extends DataReaderAdapter {
+
+    private final DeviceIndex index;
+
+    // Reused by every on_data_available callback
+    private final ParticipantBuiltinTopicData participantData =
+        new ParticipantBuiltinTopicData();
+    private final PublicationBuiltinTopicData publicationData =
+        new PublicationBuiltinTopicData();
+    private final SampleInfo info = new SampleInfo();
+
+    private DeviceDiscovery(DeviceIndex index) {
+        this.index = index;
+    }
+
+    /**
+     * Starts feeding <code>index</code> from the builtin readers of
+     * <code>participant</code>, including whatever they discovered before.
+     * @return the discovery listener, or null if the builtin readers could
+     *         not be found
+     */
+    public static DeviceDiscovery attach(DomainParticipant participant, DeviceIndex index) {
+        Subscriber builtin = participant.get_builtin_subscriber();
+        ParticipantBuiltinTopicDataDataReader participantReader =
+            (ParticipantBuiltinTopicDataDataReader) builtin.lookup_datareader(
+                ParticipantBuiltinTopicDataTypeSupport.PARTICIPANT_TOPIC_NAME);
+        PublicationBuiltinTopicDataDataReader publicationReader =
+            (PublicationBuiltinTopicDataDataReader) builtin.lookup_datareader(
+                PublicationBuiltinTopicDataTypeSupport.PUBLICATION_TOPIC_NAME);
+        if (participantReader == null || publicationReader == null) {
+            System.err.println("Unable to find the builtin discovery readers");
+            return null;
+        }
+
+        DeviceDiscovery discovery = new DeviceDiscovery(index);
+        participantReader.set_listener(discovery, StatusKind.DATA_AVAILABLE_STATUS);
+        publicationReader.set_listener(discovery, StatusKind.DATA_AVAILABLE_STATUS);
+        // Samples that arrived before the listeners were set raise no callback
+        discovery.on_data_available(participantReader);
+        discovery.on_data_available(publicationReader);
+        return discovery;
+    }
+
+    /*
+     * This method gets called back by DDS when participants or writers have
+     * been discovered or have gone away.
+     */
+    public synchronized void on_data_available(DataReader reader) {
+        for (;;) {
+            try {
+                if (reader instanceof ParticipantBuiltinTopicDataDataReader) {
+                    ((ParticipantBuiltinTopicDataDataReader) reader)
+                        .take_next_sample(participantData, info);
+                    onParticipant();
+                } else {
+                    ((PublicationBuiltinTopicDataDataReader) reader)
+                        .take_next_sample(publicationData, info);
+                    onPublication();
+                }
+            } catch (RETCODE_NO_DATA noData) {
+                // No more data to read
+                break;
+            } catch (RETCODE_ERROR e) {
+                // An error occurred
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void onParticipant() {
+        if (info.instance_state != InstanceStateKind.ALIVE_INSTANCE_STATE) {
+            leave(index.removeParticipant(info.instance_handle));
+        } else if (info.valid_data && isResponder(participantData.participant_name.name)) {
+            String device = participantData.participant_name.name.substring(
+                    PingProtocol.RESPONDER_NAME_PREFIX.length());
+            int before = index.slotOf(device);
+            join(device, before, index.addParticipant(info.instance_handle, device));
+        }
+    }
+
+    private void onPublication() {
+        if (info.instance_state != InstanceStateKind.ALIVE_INSTANCE_STATE) {
+            leave(index.removeWriter(info.instance_handle));
+        } else if (info.valid_data
+                && PingProtocol.REPLY_TOPIC.equals(publicationData.topic_name)
+                && isNamed(publicationData.publication_name.name)) {
+            String device = publicationData.publication_name.name;
+            int before = index.slotOf(device);
+            join(device, before, index.addWriter(info.instance_handle, device));
+        }
+    }
+
+    private static void join(String device, int before, int slot) {
+        if (slot < 0) {
+            System.err.println("Device index full, not pinging " + device);
+        } else if (before < 0) {
+            System.out.println("Discovered " + device);
+        }
+    }
+
+    private static void leave(String device) {
+        if (device != null) {
+            System.out.println("Lost " + device);
+        }
+    }
+
+    private static boolean isNamed(String name) {
+        return name != null && name.length() > 0;
+    }
+
+    private static boolean isResponder(String name) {
+        return name != null && name.startsWith(PingProtocol.RESPONDER_NAME_PREFIX)
+                && name.length() > PingProtocol.RESPONDER_NAME_PREFIX.length();
+    }
+}
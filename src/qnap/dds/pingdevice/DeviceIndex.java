@@ -0,0 +1,324 @@
+package qnap.dds.pingdevice;
+
+import com.rti.dds.infrastructure.InstanceHandle_t;
+
+/**
+ * Compact index of the devices currently in the ping set.  Each device ID
+ * is given a slot between 0 and <code>capacity - 1</code>, which is the
+ * index the ping engine uses for all its per-device arrays.  Slots of
+ * devices that leave are handed out again.
+ * <p>
+ * IDs are found through an open-addressing table of slot numbers, so the
+ * index holds nothing per device but the ID string itself.
+ * <p>
+ * Devices can also be tracked through the DDS entities that stand for
+ * them, see <code>addParticipant</code> and <code>addWriter</code>.  A device
+ * stays in the index while any of its participants is alive, or, if none
+ * was ever seen, any of its writers; so one that restarts and is
+ * rediscovered before its old entities go away keeps its slot.  Entities
+ * are found through a second open-addressing table, of handles, with a
+ * count of live participants and writers per slot.
+ * <p>
+ * Discovery listeners add and remove devices while the ping engine reads
+ * the index between runs, so every method is synchronized.  A generation
+ * counter tells readers whether anything changed since they last looked.
+ */
+public class DeviceIndex {
+
+    private static final int NONE = -1;
+    private static final int REMOVED = -2;
+
+    private final String[] ids;
+    private final int[] table;        // slot numbers, NONE or REMOVED
+    private final int[] participants; // live participants per slot
+    private final int[] writers;      // live writers per slot
+    private final InstanceHandle_t[] handles;   // null where free
+    private final int[] handleSlots;
+    private final boolean[] handleIsParticipant;
+    private int handleCount;
+    private final int[] freeSlots;
+    private int freeCount;
+    private int size;
+    private int removed;              // REMOVED entries in the table
+    private long generation;
+
+    public DeviceIndex(int capacity) {
+        ids = new String[capacity];
+        table = new int[Integer.highestOneBit(Math.max(capacity, 2) - 1) << 2];
+        for (int i = 0; i < table.length; i++) {
+            table[i] = NONE;
+        }
+        participants = new int[capacity];
+        writers = new int[capacity];
+        // Room for four entities per device, at most half full: a participant
+        // and a writer, twice over while a device restarts
+        handles = new InstanceHandle_t[table.length * 4];
+        handleSlots = new int[handles.length];
+        handleIsParticipant = new boolean[handles.length];
+        freeSlots = new int[capacity];
+        // Hand out low slots first
+        for (int slot = 0; slot < capacity; slot++) {
+            freeSlots[slot] = capacity - 1 - slot;
+        }
+        freeCount = capacity;
+    }
+
+    /**
+     * Adds <code>id</code> unless it is already present.
+     * @return its slot, or -1 if the index is full
+     */
+    public synchronized int add(String id) {
+        int mask = table.length - 1;
+        int firstRemoved = NONE;
+        for (int i = home(id, mask); ; i = (i + 1) & mask) {
+            int slot = table[i];
+            if (slot == NONE) {
+                if (freeCount == 0) {
+                    return NONE;
+                }
+                slot = freeSlots[--freeCount];
+                ids[slot] = id;
+                if (firstRemoved == NONE) {
+                    table[i] = slot;
+                } else {
+                    table[firstRemoved] = slot;
+                    removed--;
+                }
+                size++;
+                generation++;
+                return slot;
+            } else if (slot == REMOVED) {
+                if (firstRemoved == NONE) {
+                    firstRemoved = i;
+                }
+            } else if (ids[slot].equals(id)) {
+                return slot;
+            }
+        }
+    }
+
+    /**
+     * Removes <code>id</code>.  A device added through
+     * <code>addParticipant</code> or <code>addWriter</code> must only leave
+     * through their <code>remove</code> counterparts.
+     * @return the slot it had, or -1 if it was not present
+     */
+    public synchronized int remove(String id) {
+        int i = find(id);
+        if (i == NONE) {
+            return NONE;
+        }
+        int slot = table[i];
+        table[i] = REMOVED;
+        ids[slot] = null;
+        freeSlots[freeCount++] = slot;
+        size--;
+        generation++;
+        if (++removed > table.length / 4) {
+            rebuild();
+        }
+        return slot;
+    }
+
+    /**
+     * Counts <code>participant</code> as a live participant of device
+     * <code>id</code>, adding the device unless it is already present.  A
+     * participant already counted is not counted again.
+     * @param participant handle of the participant, copied if kept
+     * @return the device's slot, or -1 if the index is full
+     */
+    public synchronized int addParticipant(InstanceHandle_t participant, String id) {
+        return addHandle(participant, id, true);
+    }
+
+    /**
+     * Forgets <code>participant</code>.  If that was the device's last live
+     * participant, the device is removed along with whatever writers it
+     * still has, since they cannot outlive their participants.
+     * @return the ID of the device removed, or null if none was
+     */
+    public synchronized String removeParticipant(InstanceHandle_t participant) {
+        int i = findHandle(participant);
+        if (i == NONE || !handleIsParticipant[i]) {
+            return null;
+        }
+        int slot = handleSlots[i];
+        removeHandleAt(i);
+        if (--participants[slot] > 0) {
+            return null;
+        }
+        for (int j = 0; j < handles.length; j++) {
+            // Removing an entry may move another one into its place
+            while (handles[j] != null && handleSlots[j] == slot) {
+                removeHandleAt(j);
+            }
+        }
+        writers[slot] = 0;
+        String id = ids[slot];
+        remove(id);
+        return id;
+    }
+
+    /**
+     * Counts <code>writer</code> as a live writer of device <code>id</code>,
+     * adding the device unless it is already present.  A writer already
+     * counted is not counted again.
+     * @param writer handle of the writer, copied if kept
+     * @return the device's slot, or -1 if the index is full
+     */
+    public synchronized int addWriter(InstanceHandle_t writer, String id) {
+        return addHandle(writer, id, false);
+    }
+
+    /**
+     * Forgets <code>writer</code>, and removes its device if that was the
+     * device's last live writer and no participant of the device is known.
+     * @return the ID of the device removed, or null if none was
+     */
+    public synchronized String removeWriter(InstanceHandle_t writer) {
+        int i = findHandle(writer);
+        if (i == NONE || handleIsParticipant[i]) {
+            return null;
+        }
+        int slot = handleSlots[i];
+        removeHandleAt(i);
+        if (--writers[slot] > 0 || participants[slot] > 0) {
+            return null;
+        }
+        String id = ids[slot];
+        remove(id);
+        return id;
+    }
+
+    private int addHandle(InstanceHandle_t handle, String id, boolean participant) {
+        int mask = handles.length - 1;
+        int i = handleHome(handle, mask);
+        while (handles[i] != null) {
+            if (handles[i].equals(handle)) {
+                return handleSlots[i];
+            }
+            i = (i + 1) & mask;
+        }
+        if (handleCount >= handles.length / 2) {
+            return NONE;
+        }
+        int slot = add(id);
+        if (slot == NONE) {
+            return NONE;
+        }
+        handles[i] = new InstanceHandle_t(handle);
+        handleSlots[i] = slot;
+        handleIsParticipant[i] = participant;
+        handleCount++;
+        if (participant) {
+            participants[slot]++;
+        } else {
+            writers[slot]++;
+        }
+        return slot;
+    }
+
+    private int findHandle(InstanceHandle_t handle) {
+        int mask = handles.length - 1;
+        for (int i = handleHome(handle, mask); handles[i] != null; i = (i + 1) & mask) {
+            if (handles[i].equals(handle)) {
+                return i;
+            }
+        }
+        return NONE;
+    }
+
+    private void removeHandleAt(int i) {
+        int mask = handles.length - 1;
+        handles[i] = null;
+        handleCount--;
+        // Move back the entries whose probe ran over the freed one, so that
+        // lookups can keep stopping at the first free entry
+        for (int j = (i + 1) & mask; handles[j] != null; j = (j + 1) & mask) {
+            int home = handleHome(handles[j], mask);
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                handles[i] = handles[j];
+                handleSlots[i] = handleSlots[j];
+                handleIsParticipant[i] = handleIsParticipant[j];
+                handles[j] = null;
+                i = j;
+            }
+        }
+    }
+
+    private static int handleHome(InstanceHandle_t handle, int mask) {
+        int hash = handle.hashCode() * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    /**
+     * Clears out the REMOVED entries, which otherwise pile up with churn
+     * until lookups find no end to their probe.
+     */
+    private void rebuild() {
+        int mask = table.length - 1;
+        for (int i = 0; i < table.length; i++) {
+            table[i] = NONE;
+        }
+        for (int slot = 0; slot < ids.length; slot++) {
+            if (ids[slot] != null) {
+                int i = home(ids[slot], mask);
+                while (table[i] != NONE) {
+                    i = (i + 1) & mask;
+                }
+                table[i] = slot;
+            }
+        }
+        removed = 0;
+    }
+
+    private static int home(String id, int mask) {
+        int hash = id.hashCode() * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    /**
+     * @return the slot of <code>id</code>, or -1 if it is not present
+     */
+    public synchronized int slotOf(String id) {
+        int i = find(id);
+        return i == NONE ? NONE : table[i];
+    }
+
+    private int find(String id) {
+        int mask = table.length - 1;
+        for (int i = home(id, mask); ; i = (i + 1) & mask) {
+            int slot = table[i];
+            if (slot == NONE) {
+                return NONE;
+            } else if (slot != REMOVED && ids[slot].equals(id)) {
+                return i;
+            }
+        }
+    }
+
+    /**
+     * Copies the ID in every slot, null for free slots, into
+     * <code>into</code>.
+     * @return the generation the copy reflects
+     */
+    public synchronized long snapshot(String[] into) {
+        System.arraycopy(ids, 0, into, 0, ids.length);
+        return generation;
+    }
+
+    /**
+     * Changes every time a device is added or removed.
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return ids.length;
+    }
+}
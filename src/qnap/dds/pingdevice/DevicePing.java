@@ -1,10 +1,979 @@
 package qnap.dds.pingdevice;
 
-public class DevicePing {
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
-	public static void main(String[] args) {
-		// TODO Auto-generated method stub
+import com.qnap.dds.util.LatencyHistogram;
+import com.qnap.dds.util.ProgramOptions;
+import com.qnap.dds.util.ProgramOptions.Option;
+import com.qnap.dds.util.TimingWheel;
+import com.rti.dds.infrastructure.InstanceHandle_t;
+import com.rti.dds.infrastructure.RETCODE_ERROR;
+import com.rti.dds.infrastructure.RETCODE_NO_DATA;
+import com.rti.dds.infrastructure.StatusKind;
+import com.rti.dds.subscription.DataReader;
+import com.rti.dds.subscription.DataReaderAdapter;
+import com.rti.dds.subscription.SampleInfo;
+import com.rti.dds.subscription.SubscriptionMatchedStatus;
+import com.rti.dds.type.builtin.KeyedBytes;
+import com.rti.dds.type.builtin.KeyedBytesDataReader;
+import com.rti.dds.type.builtin.KeyedBytesDataWriter;
 
-	}
+/**
+ * DDS round-trip ping.  Publishes sequence-numbered requests on
+ * <code>PingProtocol.REQUEST_TOPIC</code>, matches the echoes read back on
+ * <code>PingProtocol.REPLY_TOPIC</code> and records the round trip time into
+ * a <code>LatencyHistogram</code>.
+ * <p>
+ * Round trips are measured from each ping's intended send time, i.e. when
+ * its interval came round, rather than from when it actually went out.  A
+ * stall on either side then shows up in the latency of every ping it held
+ * back instead of vanishing from the histogram (coordinated omission).  The
+ * round trip from the actual send time is reported alongside, as are
+ * each device's jitter, reordered and duplicate replies, see
+ * <code>ReplyStats</code>.  Replies the responder has timestamped are also
+ * split into uplink and downlink delays using each device's clock offset,
+ * see <code>ClockFilter</code>.
+ * <p>
+ * A whole fleet of devices is pinged through one writer and one reader:
+ * each device is an instance of the keyed ping type, registered once up
+ * front.  Per-device state is kept in arrays indexed by the device's
+ * position in the device list.
+ * <p>
+ * Up to <code>window</code> pings per device are kept in flight: a new ping
+ * goes out as soon as one in flight has been answered or has timed out.  A
+ * window of 1 is plain stop-and-wait.
+ * <p>
+ * Send intervals and reply timeouts are timers on a <code>TimingWheel</code>
+ * driven by the thread that calls <code>run</code>, which is also the only
+ * thread that writes requests.
+ * <p>
+ * With <code>-adaptive</code> each device's interval is adjusted while
+ * pinging by a <code>RateController</code>, starting from the given one.
+ * <p>
+ * With <code>-flood</code> the interval is ignored and the send rate is
+ * ramped up to find the highest rate the DDS path sustains, see
+ * <code>RateSearch</code>.  With <code>-payloadSizes</code> each run is
+ * repeated over a range of payload sizes, see <code>PayloadSweep</code>.
+ * <p>
+ * With <code>-shards</code> the device list is split across several
+ * DevicePing instances, see <code>ShardedPing</code>.  With
+ * <code>-execution virtual</code> each device is pinged by its own blocking
+ * thread instead, see <code>VirtualThreadPing</code>.
+ * <p>
+ * With <code>-discover</code> the device list is not given but kept up to
+ * date from the responders found on the bus, up to
+ * <code>-maxDevices</code> of them, see <code>DeviceDiscovery</code>.  Each
+ * device keeps its slot in the per-device arrays while it stays.
+ * <p>
+ * Pings are only written to devices whose responder has matched with both
+ * the request writer and the reply reader, see <code>MatchTracker</code>.
+ * Sends that come due while a device has no responder are skipped, and
+ * pings in flight when its responder goes away are written off, without
+ * counting either as lost.
+ */
+public class DevicePing extends DataReaderAdapter implements TimingWheel.Handler {
 
+    private static final int SEND_TIMER = 0;
+    private static final int TIMEOUT_TIMER = 1;
+
+    /**
+     * How long to wait for a first device to be discovered before looking
+     * again, in milliseconds.
+     */
+    private static final long DISCOVERY_WAIT_MILLIS = 500;
+
+    private final KeyedBytesDataWriter requestWriter;
+    private final String[] deviceIds;
+    private final int firstDevice;
+    private final InstanceHandle_t[] instances;
+    private final KeyedBytes request;
+    private final int window;
+
+    /**
+     * Intended send time of each ping in flight, keyed by ping ID.  The listener and
+     * the timeout timer race to remove an entry; whoever wins accounts for
+     * the ping.
+     */
+    private final OutstandingTable outstanding;
+    private final AtomicIntegerArray inFlight;
+
+    /**
+     * Timeout timer of each ping in flight, keyed by ping ID.  Whoever
+     * removes an entry from <code>outstanding</code> removes it here too;
+     * the listener hands the timer of an answered ping to the sender
+     * through <code>cancels</code>, so the wheel does not fill up with
+     * timeouts that no longer matter.
+     */
+    private final OutstandingTable timeouts;
+    private final CancelQueue cancels;
+
+    // Devices that may have a send waiting for room in their window
+    private final ReadyQueue ready;
+
+    // Reused by every on_data_available callback.  Taking a sample still
+    // decodes its key into a new String, the one allocation per reply
+    private final KeyedBytes replyHolder = new KeyedBytes();
+    private final SampleInfo replyInfo = new SampleInfo();
+
+    // Written only by the listener thread
+    private final LatencyHistogram histogram = new LatencyHistogram();
+    private final LatencyHistogram rawHistogram = new LatencyHistogram();
+    private final ReplyStats replyStats;
+    private final ClockFilter clockFilter;
+    private final LatencyHistogram uplinkHistogram = new LatencyHistogram();
+    private final LatencyHistogram downlinkHistogram = new LatencyHistogram();
+    private final AtomicLong answered = new AtomicLong();
+
+    // Adjusts each device's interval when set, see setRateController()
+    private volatile RateController rateController;
+
+    // Which devices have a responder matched, when set by open()
+    private volatile MatchTracker matches;
+
+    private volatile Thread sender;
+    private volatile boolean senderParked;
+
+    // Set when this DevicePing owns its participant, see open()
+    private PingParticipant endpoints;
+
+    // Only touched by the sender thread
+    private final TimingWheel wheel;
+    private final long[] nextSeq;
+    private final long[] released;     // sends whose interval has come round
+    private final long[] sentCounts;
+    private final long[] nextSendTimes;
+    private final long[] releaseIntervals;   // interval of each device's latest release
+    private final boolean[] matched;
+    private long matchGeneration;
+    private long intervalNanos;
+    private long timeoutNanos;
+    private int activeDevices;
+    private int pingedDevices;
+    private long toRelease;
+    private long sent;
+    private long lost;
+    private long skipped;      // sends due while the device had no responder
+    private long abandoned;    // timeouts of pings to devices that lost theirs
+    private long sendNanos;
+    private long elapsedNanos;
+
+    /**
+     * Creates a ping engine for <code>deviceIds</code>.  Its listener must be
+     * attached to the reply reader by the caller.  Null IDs are free slots,
+     * see <code>syncDevices</code>.
+     * @param firstDevice index of <code>deviceIds[0]</code> in the full
+     *        device list, so that ping IDs stay unique across shards
+     */
+    public DevicePing(KeyedBytesDataWriter requestWriter, String[] deviceIds, int firstDevice,
+            int payloadSize, int window, long tickNanos) {
+        if (payloadSize < PingProtocol.HEADER_SIZE) {
+            throw new IllegalArgumentException("payload must be at least "
+                    + PingProtocol.HEADER_SIZE + " bytes");
+        }
+        if (window < 1) {
+            throw new IllegalArgumentException("window must be at least 1");
+        }
+        if (deviceIds.length == 0 || firstDevice < 0
+                || firstDevice > PingProtocol.MAX_DEVICES - deviceIds.length) {
+            throw new IllegalArgumentException("device count out of range: " + deviceIds.length);
+        }
+        int devices = deviceIds.length;
+        this.requestWriter = requestWriter;
+        this.deviceIds = deviceIds;
+        this.firstDevice = firstDevice;
+        this.window = window;
+        this.request = new KeyedBytes();
+        this.request.value = new byte[payloadSize];
+        this.request.offset = 0;
+        this.request.length = payloadSize;
+        this.outstanding = new OutstandingTable(devices * window);
+        this.inFlight = new AtomicIntegerArray(devices);
+        this.timeouts = new OutstandingTable(devices * window);
+        // Answered pings can be queued here while as many are in flight
+        this.cancels = new CancelQueue(2 * devices * window);
+        this.ready = new ReadyQueue(devices);
+        this.wheel = new TimingWheel(tickNanos, 8, 4, devices * (window + 1), 256, this);
+        this.nextSeq = new long[devices];
+        this.released = new long[devices];
+        this.sentCounts = new long[devices];
+        this.nextSendTimes = new long[devices];
+        this.releaseIntervals = new long[devices];
+        this.matched = new boolean[devices];
+        this.matchGeneration = -1;
+        this.replyStats = new ReplyStats(devices);
+        this.clockFilter = new ClockFilter(devices);
+
+        // Registering up front lets every write skip the key lookup
+        this.instances = new InstanceHandle_t[devices];
+        for (int device = 0; device < devices; device++) {
+            if (deviceIds[device] != null) {
+                request.key = deviceIds[device];
+                instances[device] = requestWriter.register_instance(request);
+            }
+        }
+    }
+
+    public static final void main(String[] args) {
+        ProgramOptions options = new ProgramOptions();
+        options.addHelpOption();
+        Option domainId = Option.makeOption(options, "domainId", int.class, "0");
+        Option devices = Option.makeStringOption(options, "devices", "device-0");
+        Option deviceFile = Option.makeStringOption(options, "deviceFile", "");
+        Option fleetSizes = Option.makeStringOption(options, "fleetSizes", "");
+        Option count = Option.makeOption(options, "count", int.class, "1000");
+        Option intervalUs = Option.makeOption(options, "intervalUs", int.class, "1000");
+        Option timeoutMs = Option.makeOption(options, "timeoutMs", int.class, "1000");
+        Option window = Option.makeOption(options, "window", int.class, "1");
+        Option tickUs = Option.makeOption(options, "tickUs", int.class, "1000");
+        Option payloadSize = Option.makeOption(options, "payloadSize", int.class,
+                Integer.toString(PingProtocol.TIMESTAMPED_SIZE));
+        Option payloadSizes = Option.makeStringOption(options, "payloadSizes", "");
+        Option payloadFactor = Option.makeOption(options, "payloadFactor", int.class, "2");
+        Option shards = Option.makeOption(options, "shards", int.class, "1");
+        Option execution = Option.makeStringOption(options, "execution", "event");
+        Option flood = Option.makeBooleanOption(options, "flood", false);
+        Option startRate = Option.makeOption(options, "startRate", int.class, "1000");
+        Option maxLossPct = Option.makeOption(options, "maxLossPct", double.class, "1");
+        Option maxP99Ms = Option.makeOption(options, "maxP99Ms", double.class, "10");
+        Option adaptive = Option.makeBooleanOption(options, "adaptive", false);
+        Option minIntervalUs = Option.makeOption(options, "minIntervalUs", int.class, "10");
+        Option maxIntervalUs = Option.makeOption(options, "maxIntervalUs", int.class, "1000000");
+        Option rateIncrease = Option.makeOption(options, "rateIncrease", double.class, "1");
+        Option rateDecrease = Option.makeOption(options, "rateDecrease", double.class, "0.5");
+        Option rttFactor = Option.makeOption(options, "rttFactor", double.class, "2");
+        Option discover = Option.makeBooleanOption(options, "discover", false);
+        Option maxDevices = Option.makeOption(options, "maxDevices", int.class, "65536");
+        Option rounds = Option.makeOption(options, "rounds", int.class, "0");
+        options.parseOptions(args);
+
+        String[] deviceIds;
+        try {
+            deviceIds = loadDevices(devices, deviceFile);
+        } catch (IOException e) {
+            System.err.println("Unable to read device file: " + e.getMessage());
+            return;
+        }
+        int[] sweep = parseFleetSizes(fleetSizes, deviceIds.length);
+        long intervalNanos = intervalUs.asInt() * 1000L;
+        long timeoutNanos = timeoutMs.asInt() * 1000000L;
+
+        if (discover.asBoolean() && (!execution.asString().equals("event")
+                || shards.asInt() > 1 || flood.asBoolean()
+                || payloadSizes.asString().length() > 0 || fleetSizes.asString().length() > 0)) {
+            System.err.println("-discover does not support -execution virtual, -shards,"
+                    + " -flood, -payloadSizes or -fleetSizes");
+            return;
+        }
+        if (execution.asString().equals("virtual") && (shards.asInt() > 1
+                || window.asInt() != 1 || flood.asBoolean()
+                || payloadSizes.asString().length() > 0 || adaptive.asBoolean())) {
+            System.err.println("-execution virtual does not support -shards, -window,"
+                    + " -flood, -payloadSizes or -adaptive");
+            return;
+        }
+        if (execution.asString().equals("virtual")) {
+            VirtualThreadPing threaded = VirtualThreadPing.open(domainId.asInt(), deviceIds,
+                    payloadSize.asInt());
+            if (threaded == null) {
+                return;
+            }
+            System.out.println("Pinging " + deviceIds.length + " device(s) from "
+                    + (threaded.isVirtual() ? "virtual" : "platform")
+                    + " threads on domain " + domainId.asInt() + "...");
+            for (int i = 0; i < sweep.length; i++) {
+                threaded.run(sweep[i], count.asInt(), intervalNanos, timeoutNanos);
+                threaded.printReport();
+            }
+            threaded.close();
+            return;
+        } else if (!execution.asString().equals("event")) {
+            System.err.println("Unknown execution mode: " + execution.asString());
+            return;
+        }
+
+        int[] payloadSweep = null;
+        int largestPayload = payloadSize.asInt();
+        if (payloadSizes.asString().length() > 0) {
+            try {
+                payloadSweep = PayloadSweep.parseSizes(payloadSizes.asStringList(", "),
+                        payloadFactor.asInt());
+            } catch (IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                return;
+            }
+            for (int i = 0; i < payloadSweep.length; i++) {
+                largestPayload = Math.max(largestPayload, payloadSweep[i]);
+            }
+        }
+
+        if ((flood.asBoolean() || payloadSweep != null) && shards.asInt() > 1) {
+            System.err.println("-flood and -payloadSizes do not support -shards");
+            return;
+        }
+        if (flood.asBoolean() && payloadSweep != null) {
+            System.err.println("-flood and -payloadSizes cannot be combined");
+            return;
+        }
+        if (adaptive.asBoolean() && (shards.asInt() > 1 || flood.asBoolean()
+                || intervalNanos == 0)) {
+            System.err.println("-adaptive needs an interval and no -shards or -flood");
+            return;
+        }
+        if (shards.asInt() > 1) {
+            ShardedPing sharded = ShardedPing.open(domainId.asInt(), deviceIds, shards.asInt(),
+                    payloadSize.asInt(), window.asInt(), tickUs.asInt() * 1000L);
+            if (sharded == null) {
+                return;
+            }
+            System.out.println("Pinging " + deviceIds.length + " device(s) from "
+                    + shards.asInt() + " shards on domain " + domainId.asInt() + "...");
+            for (int i = 0; i < sweep.length; i++) {
+                sharded.run(sweep[i], count.asInt(), intervalNanos, timeoutNanos);
+                sharded.printReport();
+            }
+            sharded.close();
+            return;
+        }
+
+        if (discover.asBoolean()) {
+            // Every slot starts out free, see pingDiscovered()
+            deviceIds = new String[maxDevices.asInt()];
+        }
+        DevicePing ping = open(domainId.asInt(), deviceIds, 0, false,
+                largestPayload, window.asInt(), tickUs.asInt() * 1000L);
+        if (ping == null) {
+            return;
+        }
+        if (adaptive.asBoolean()) {
+            ping.setRateController(new RateController(deviceIds.length,
+                    minIntervalUs.asInt() * 1000L, maxIntervalUs.asInt() * 1000L,
+                    rateIncrease.asDouble(), rateDecrease.asDouble(), rttFactor.asDouble()));
+        }
+        try {
+            if (discover.asBoolean()) {
+                System.out.println("Pinging discovered devices on domain "
+                        + domainId.asInt() + "...");
+                ping.setPayloadSize(payloadSize.asInt());
+                ping.pingDiscovered(rounds.asInt(), count.asInt(), intervalNanos, timeoutNanos);
+                ping.close();
+                return;
+            }
+            System.out.println("Pinging " + deviceIds.length + " device(s) on domain "
+                    + domainId.asInt() + "...");
+            if (flood.asBoolean()) {
+                RateSearch search = new RateSearch(ping, count.asInt(), timeoutNanos,
+                        maxLossPct.asDouble(), (long) (maxP99Ms.asDouble() * 1e6));
+                for (int i = 0; i < sweep.length; i++) {
+                    long rate = search.find(sweep[i], startRate.asInt(), 0.05);
+                    System.out.println("devices=" + sweep[i] + " sustainable rate="
+                            + rate + " pings/s");
+                }
+            } else if (payloadSweep != null) {
+                PayloadSweep payloads = new PayloadSweep(ping);
+                for (int i = 0; i < sweep.length; i++) {
+                    System.out.println("devices=" + sweep[i]);
+                    payloads.run(payloadSweep, sweep[i], count.asInt(), intervalNanos,
+                            timeoutNanos);
+                }
+            } else {
+                ping.setPayloadSize(payloadSize.asInt());
+                for (int i = 0; i < sweep.length; i++) {
+                    ping.run(sweep[i], count.asInt(), intervalNanos, timeoutNanos);
+                    ping.printReport();
+                }
+            }
+        } catch (RETCODE_ERROR e) {
+            // This exception can be thrown from DDS write operation
+            e.printStackTrace();
+        }
+        ping.close();
+    }
+
+    /**
+     * Creates a participant with the request writer and reply reader for
+     * <code>deviceIds</code> and attaches a new DevicePing to them.
+     * @param filterReplies when true, the reply reader only subscribes to
+     *        replies from <code>deviceIds</code>
+     * @return the new DevicePing, or null if an entity could not be created
+     * @param payloadSize largest payload, see <code>setPayloadSize</code>
+     * @see PingParticipant#create(int, String[], boolean, String, int)
+     */
+    public static DevicePing open(int domainId, String[] deviceIds, int firstDevice,
+            boolean filterReplies, int payloadSize, int window, long tickNanos) {
+        PingParticipant endpoints = PingParticipant.create(domainId, deviceIds, filterReplies,
+                PingProtocol.REPLY_TOPIC + " " + firstDevice, payloadSize);
+        if (endpoints == null) {
+            return null;
+        }
+        DevicePing ping = new DevicePing(endpoints.requestWriter, deviceIds, firstDevice,
+                payloadSize, window, tickNanos);
+        MatchTracker matches = new MatchTracker();
+        ping.matches = matches;
+        KeyedBytesDataReader replyReader = endpoints.attachReplyListener(ping,
+                StatusKind.DATA_AVAILABLE_STATUS | StatusKind.SUBSCRIPTION_MATCHED_STATUS);
+        if (replyReader == null) {
+            endpoints.close();
+            return null;
+        }
+        matches.attach(endpoints.requestWriter, replyReader);
+        ping.endpoints = endpoints;
+        return ping;
+    }
+
+    /**
+     * Pings the devices found by a <code>DeviceDiscovery</code> on this
+     * DevicePing's participant, one <code>run</code> per round.  Devices
+     * that join or leave during a round are picked up by the next one.
+     * Needs a DevicePing from <code>open</code> whose slots start out free.
+     * @param rounds number of rounds, 0 to keep going until interrupted
+     */
+    private void pingDiscovered(int rounds, int count, long intervalNanos,
+            long timeoutNanos) {
+        DeviceIndex index = new DeviceIndex(deviceIds.length);
+        if (DeviceDiscovery.attach(endpoints.participant, index) == null) {
+            return;
+        }
+        String[] ids = new String[deviceIds.length];
+        long generation = -1;
+        int slots = 0;
+        for (int round = 0; rounds == 0 || round < rounds; ) {
+            if (index.getGeneration() != generation) {
+                generation = index.snapshot(ids);
+                slots = syncDevices(ids);
+            }
+            if (slots == 0) {
+                try {
+                    Thread.sleep(DISCOVERY_WAIT_MILLIS);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                continue;
+            }
+            run(slots, count, intervalNanos, timeoutNanos);
+            printReport();
+            round++;
+        }
+    }
+
+    /**
+     * Deletes the participant created by <code>open</code>.
+     */
+    public void close() {
+        if (endpoints != null) {
+            endpoints.close();
+            endpoints = null;
+        }
+    }
+
+    /**
+     * Changes the size of the pings sent by the next <code>run</code>.
+     * @param payloadSize between <code>PingProtocol.HEADER_SIZE</code> and
+     *        the payload size this DevicePing was created with
+     */
+    public void setPayloadSize(int payloadSize) {
+        if (payloadSize < PingProtocol.HEADER_SIZE || payloadSize > request.value.length) {
+            throw new IllegalArgumentException("payload size out of range: " + payloadSize);
+        }
+        request.length = payloadSize;
+    }
+
+    /**
+     * Lets <code>controller</code> adjust each device's interval during
+     * <code>run</code>, or restores fixed intervals when null.  Must not be
+     * called while running.
+     */
+    public void setRateController(RateController controller) {
+        rateController = controller;
+    }
+
+    /**
+     * Brings the device slots in line with <code>ids</code>, as taken from
+     * a <code>DeviceIndex</code>: devices that left are unregistered, and
+     * new ones registered in their slot.  Must not be called while running.
+     * @return the number of slots up to the highest one in use, to pass to
+     *         <code>run</code>
+     */
+    public int syncDevices(String[] ids) {
+        int slots = 0;
+        for (int device = 0; device < deviceIds.length; device++) {
+            String id = ids[device];
+            if (id == null ? deviceIds[device] != null : !id.equals(deviceIds[device])) {
+                if (deviceIds[device] != null) {
+                    request.key = deviceIds[device];
+                    requestWriter.unregister_instance(request, instances[device]);
+                    instances[device] = null;
+                }
+                deviceIds[device] = id;
+                matchGeneration = -1;
+                if (id != null) {
+                    request.key = id;
+                    instances[device] = requestWriter.register_instance(request);
+                }
+            }
+            if (id != null) {
+                slots = device + 1;
+            }
+        }
+        return slots;
+    }
+
+    /**
+     * Collects device IDs from the <code>devices</code> list, or from
+     * <code>deviceFile</code> (one ID per line, # starts a comment) when it
+     * is given.
+     */
+    static String[] loadDevices(Option devices, Option deviceFile) throws IOException {
+        List<String> ids;
+        if (deviceFile.asString().length() == 0) {
+            ids = devices.asStringList(", ");
+        } else {
+            ids = new ArrayList<String>();
+            BufferedReader reader = new BufferedReader(new FileReader(deviceFile.asString()));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+                    if (line.length() > 0 && !line.startsWith("#")) {
+                        ids.add(line);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        return ids.toArray(new String[ids.size()]);
+    }
+
+    /**
+     * Parses the fleet sizes to sweep through, defaulting to the whole
+     * device list.
+     */
+    static int[] parseFleetSizes(Option fleetSizes, int deviceCount) {
+        List<String> sizes = fleetSizes.asStringList(", ");
+        if (sizes.isEmpty()) {
+            return new int[] { deviceCount };
+        }
+        int[] sweep = new int[sizes.size()];
+        for (int i = 0; i < sweep.length; i++) {
+            sweep[i] = Math.min(Integer.parseInt(sizes.get(i)), deviceCount);
+        }
+        return sweep;
+    }
+
+    /**
+     * Sends <code>count</code> pings to each of the first
+     * <code>devices</code> devices, keeping up to <code>window</code> per
+     * device in flight, and returns once every ping has been answered or has
+     * timed out.  May be called again to ping a different number of devices.
+     * Free slots among them are skipped, and so are the sends due to a
+     * device while no responder is matched for it.
+     * @param intervalNanos spacing between two sends to the same device, 0
+     *        to send as fast as the window allows.  With a rate controller
+     *        this is only the starting interval and must not be 0.
+     * @param timeoutNanos how long to wait for a reply before counting a
+     *        ping as lost
+     */
+    public void run(int devices, int count, long intervalNanos, long timeoutNanos) {
+        if (devices < 1 || devices > deviceIds.length) {
+            throw new IllegalArgumentException("device count out of range: " + devices);
+        }
+        if (rateController != null) {
+            if (intervalNanos <= 0) {
+                throw new IllegalArgumentException("adaptive rate needs an interval");
+            }
+            rateController.reset(devices, intervalNanos);
+        }
+        sender = Thread.currentThread();
+        this.intervalNanos = intervalNanos;
+        this.timeoutNanos = timeoutNanos;
+        activeDevices = devices;
+        toRelease = count;
+        sent = 0;
+        lost = 0;
+        skipped = 0;
+        abandoned = 0;
+        sendNanos = 0;
+        answered.set(0);
+        histogram.reset();
+        rawHistogram.reset();
+        replyStats.reset(devices);
+        clockFilter.reset(devices);
+        uplinkHistogram.reset();
+        downlinkHistogram.reset();
+
+        pingedDevices = 0;
+        long start = System.nanoTime();
+        for (int device = 0; device < devices; device++) {
+            sentCounts[device] = 0;
+            if (deviceIds[device] == null) {
+                released[device] = 0;
+                continue;
+            }
+            pingedDevices++;
+            if (intervalNanos > 0) {
+                // Stagger the devices across the first interval
+                released[device] = 0;
+                nextSendTimes[device] = start + intervalNanos * device / devices;
+                wheel.schedule(nextSendTimes[device], SEND_TIMER, device);
+            } else {
+                released[device] = count;
+                ready.offer(device);
+            }
+        }
+        long total = (long) pingedDevices * count;
+
+        for (;;) {
+            long now = System.nanoTime();
+            refreshMatches();
+            cancelAnsweredTimeouts();
+            wheel.advanceTo(now);
+            int device;
+            while ((device = ready.poll()) >= 0) {
+                while (sentCounts[device] < released[device] && inFlight.get(device) < window) {
+                    if (matched[device]) {
+                        send(device, now);
+                    } else {
+                        sentCounts[device]++;
+                        skipped++;
+                    }
+                }
+            }
+            if (sent + skipped == total) {
+                if (sendNanos == 0) {
+                    sendNanos = now - start;
+                }
+                if (answered.get() + lost + abandoned == sent) {
+                    break;
+                }
+            }
+
+            // Sleep until the next tick, or until a reply opens a window
+            senderParked = true;
+            if (ready.isEmpty()) {
+                LockSupport.parkNanos(this, wheel.nextTickNanos() - now);
+            }
+            senderParked = false;
+        }
+        elapsedNanos = System.nanoTime() - start;
+    }
+
+    /*
+     * This method gets called back by the timing wheel, on the sender thread,
+     * with the send and timeout timers that have expired.
+     */
+    public void onExpired(int[] kinds, long[] payloads, int count) {
+        long now = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            if (kinds[i] == SEND_TIMER) {
+                releaseDueSends((int) payloads[i], now);
+            } else if (timeouts.remove(payloads[i]) != OutstandingTable.MISSING
+                    && outstanding.remove(payloads[i]) != OutstandingTable.MISSING) {
+                int device = PingProtocol.deviceOf(payloads[i]) - firstDevice;
+                if (!matched[device]) {
+                    // Its responder went away, which says nothing about the path
+                    abandoned++;
+                } else {
+                    if (rateController != null) {
+                        rateController.onLoss(device, PingProtocol.seqOf(payloads[i]));
+                    }
+                    lost++;
+                }
+                inFlight.decrementAndGet(device);
+                ready.offer(device);
+            }
+        }
+    }
+
+    /**
+     * Catches up with the responders that matched or went away.  Without a
+     * MatchTracker every device with an ID counts as matched.
+     */
+    private void refreshMatches() {
+        MatchTracker tracker = matches;
+        if (tracker == null) {
+            if (matchGeneration != 0) {
+                for (int device = 0; device < matched.length; device++) {
+                    matched[device] = deviceIds[device] != null;
+                }
+                matchGeneration = 0;
+            }
+        } else if (tracker.getGeneration() != matchGeneration) {
+            matchGeneration = tracker.fill(deviceIds, matched);
+        }
+    }
+
+    /**
+     * Cancels the timeout timers of the pings answered since the last call.
+     */
+    private void cancelAnsweredTimeouts() {
+        long timer;
+        while ((timer = cancels.poll()) != TimingWheel.NO_TIMER) {
+            wheel.cancel(timer);
+        }
+    }
+
+    private void releaseDueSends(int device, long now) {
+        long interval = intervalOf(device);
+        while (released[device] < toRelease && now - nextSendTimes[device] >= 0) {
+            released[device]++;
+            nextSendTimes[device] += interval;
+        }
+        releaseIntervals[device] = interval;
+        if (released[device] < toRelease) {
+            wheel.schedule(nextSendTimes[device], SEND_TIMER, device);
+        }
+        ready.offer(device);
+    }
+
+    private long intervalOf(int device) {
+        RateController controller = rateController;
+        return controller == null ? intervalNanos : controller.intervalOf(device);
+    }
+
+    private void send(int device, long now) {
+        long seq = ++nextSeq[device];
+        long pingId = PingProtocol.pingId(firstDevice + device, seq);
+        long intended = now;
+        if (intervalNanos > 0) {
+            // Released sends are spaced one interval apart and end just
+            // before nextSendTimes.  Exact for the latest release; older
+            // ones are estimates when the interval is adaptive.
+            intended = nextSendTimes[device]
+                    - (released[device] - sentCounts[device]) * releaseIntervals[device];
+        }
+        if (rateController != null) {
+            rateController.onSend(device, seq);
+        }
+        outstanding.put(pingId, intended);
+        // Before the write, so that the reply always finds the timer
+        timeouts.put(pingId, wheel.schedule(now + timeoutNanos, TIMEOUT_TIMER, pingId));
+        inFlight.incrementAndGet(device);
+        PingProtocol.putLong(request.value, PingProtocol.ID_OFFSET, pingId);
+        PingProtocol.putLong(request.value, PingProtocol.SEND_TIME_OFFSET,
+                PingProtocol.toWallClock(now));
+        request.key = deviceIds[device];
+        requestWriter.write(request, instances[device]);
+        sentCounts[device]++;
+        sent++;
+    }
+
+    /**
+     * Prints the loss count, the send and receive rates and the round trip
+     * latency percentiles of the last <code>run</code>.
+     */
+    public void printReport() {
+        printReport(pingedDevices, sent, answered.get(), lost, sendNanos, elapsedNanos,
+                histogram, intervalNanos > 0 ? rawHistogram : null);
+        ReplyStats.Summary summary = new ReplyStats.Summary();
+        replyStats.addTo(summary, activeDevices);
+        summary.print(System.out);
+        printUnmatched(skipped, abandoned);
+        printOneWay(uplinkHistogram, downlinkHistogram);
+        ClockFilter.Summary offsets = new ClockFilter.Summary();
+        clockFilter.addTo(offsets, activeDevices);
+        offsets.print(System.out);
+        if (rateController != null) {
+            rateController.printRates(activeDevices);
+        }
+    }
+
+    /**
+     * @param rawHistogram round trips measured from the actual send time, or
+     *        null if they match <code>histogram</code>
+     */
+    static void printReport(int devices, long sent, long answered, long lost,
+            long sendNanos, long elapsedNanos, LatencyHistogram histogram,
+            LatencyHistogram rawHistogram) {
+        System.out.println("devices=" + devices + " sent=" + sent + " answered=" + answered
+                + " lost=" + lost);
+        if (sendNanos > 0 && elapsedNanos > 0) {
+            System.out.printf("send=%.0f pings/s receive=%.0f replies/s%n",
+                    sent * 1e9 / sendNanos, answered * 1e9 / elapsedNanos);
+        }
+        histogram.print(System.out, "rtt");
+        if (rawHistogram != null) {
+            rawHistogram.print(System.out, "rtt uncorrected");
+        }
+    }
+
+    /**
+     * Prints the pings held back or written off because their device had no
+     * responder matched, if there were any.
+     */
+    static void printUnmatched(long skipped, long abandoned) {
+        if (skipped + abandoned > 0) {
+            System.out.println("unmatched: skipped=" + skipped + " abandoned=" + abandoned);
+        }
+    }
+
+    /**
+     * Prints the one-way delays, if any reply was timestamped.
+     */
+    static void printOneWay(LatencyHistogram uplink, LatencyHistogram downlink) {
+        if (uplink.getTotalCount() > 0) {
+            uplink.print(System.out, "uplink");
+            downlink.print(System.out, "downlink");
+        }
+    }
+
+    /**
+     * Number of devices in this DevicePing's share of the fleet.
+     */
+    public int getDeviceCount() {
+        return deviceIds.length;
+    }
+
+    /*
+     * Results of the last run, to be read once run has returned.
+     */
+
+    public long getSent() {
+        return sent;
+    }
+
+    public long getAnswered() {
+        return answered.get();
+    }
+
+    public long getLost() {
+        return lost;
+    }
+
+    public long getSkipped() {
+        return skipped;
+    }
+
+    public long getAbandoned() {
+        return abandoned;
+    }
+
+    public long getSendNanos() {
+        return sendNanos;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    public LatencyHistogram getHistogram() {
+        return histogram;
+    }
+
+    public LatencyHistogram getRawHistogram() {
+        return rawHistogram;
+    }
+
+    public ReplyStats getReplyStats() {
+        return replyStats;
+    }
+
+    public ClockFilter getClockFilter() {
+        return clockFilter;
+    }
+
+    public LatencyHistogram getUplinkHistogram() {
+        return uplinkHistogram;
+    }
+
+    public LatencyHistogram getDownlinkHistogram() {
+        return downlinkHistogram;
+    }
+
+    public int getActiveDevices() {
+        return activeDevices;
+    }
+
+    /*
+     * This method gets called back by DDS when a responder's reply writer has
+     * matched with the reply reader, or has gone away.
+     */
+    public void on_subscription_matched(DataReader reader, SubscriptionMatchedStatus status) {
+        MatchTracker tracker = matches;
+        if (tracker != null) {
+            tracker.onReplyMatched(reader, status);
+        }
+    }
+
+    /*
+     * This method gets called back by DDS when one or more replies have been
+     * received.
+     */
+    public void on_data_available(DataReader reader) {
+        KeyedBytesDataReader replyReader = (KeyedBytesDataReader) reader;
+        for (;;) {
+            try {
+                replyReader.take_next_sample(replyHolder, replyInfo);
+                if (replyInfo.valid_data && replyHolder.length >= PingProtocol.HEADER_SIZE) {
+                    onReply(replyHolder.value, replyHolder.offset, replyHolder.length);
+                }
+            } catch (RETCODE_NO_DATA noData) {
+                // No more data to read
+                break;
+            } catch (RETCODE_ERROR e) {
+                // An error occurred
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void onReply(byte[] reply, int offset, int length) {
+        long now = System.nanoTime();
+        long pingId = PingProtocol.getLong(reply, offset + PingProtocol.ID_OFFSET);
+        int device = PingProtocol.deviceOf(pingId) - firstDevice;
+        if (device < 0 || device >= deviceIds.length) {
+            // Another shard's device
+            return;
+        }
+        long sendTime = PingProtocol.getLong(reply, offset + PingProtocol.SEND_TIME_OFFSET);
+        long receiveTime = PingProtocol.toWallClock(now);
+        long rtt = receiveTime - sendTime;
+        if (replyStats.onReply(device, PingProtocol.seqOf(pingId), rtt) == ReplyStats.DUPLICATE) {
+            return;
+        }
+        long intended = outstanding.remove(pingId);
+        if (intended == OutstandingTable.MISSING) {
+            // A late reply to a ping that has already timed out, or a
+            // duplicate too old for replyStats to recognize
+            return;
+        }
+        long timer = timeouts.remove(pingId);
+        if (timer != OutstandingTable.MISSING) {
+            // If the queue is full the timer expires and finds nothing to do
+            cancels.offer(timer);
+        }
+        histogram.recordValue(now - intended);
+        rawHistogram.recordValue(rtt);
+        if (length >= PingProtocol.TIMESTAMPED_SIZE) {
+            recordOneWay(device, reply, offset, sendTime, receiveTime);
+        }
+        RateController controller = rateController;
+        if (controller != null) {
+            controller.onReply(device, PingProtocol.seqOf(pingId), rtt);
+        }
+        inFlight.decrementAndGet(device);
+        answered.incrementAndGet();
+        ready.offer(device);
+        if (senderParked) {
+            LockSupport.unpark(sender);
+        }
+    }
+
+    private void recordOneWay(int device, byte[] reply, int offset, long t1, long t4) {
+        long t2 = PingProtocol.getLong(reply, offset + PingProtocol.RECEIVE_TIME_OFFSET);
+        long t3 = PingProtocol.getLong(reply, offset + PingProtocol.TRANSMIT_TIME_OFFSET);
+        if (t2 == 0 || t3 == 0) {
+            // An older responder that does not timestamp
+            return;
+        }
+        long clockOffset = clockFilter.addSample(device, t1, t2, t3, t4);
+        uplinkHistogram.recordValue(t2 - t1 - clockOffset);
+        downlinkHistogram.recordValue(t4 - t3 + clockOffset);
+    }
 }
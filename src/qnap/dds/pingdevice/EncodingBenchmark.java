@@ -0,0 +1,347 @@
+package qnap.dds.pingdevice;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.qnap.dds.util.ProgramOptions;
+import com.qnap.dds.util.ProgramOptions.Option;
+import com.rti.dds.domain.DomainParticipant;
+import com.rti.dds.domain.DomainParticipantFactory;
+import com.rti.dds.infrastructure.InstanceHandle_t;
+import com.rti.dds.infrastructure.RETCODE_ERROR;
+import com.rti.dds.infrastructure.RETCODE_NO_DATA;
+import com.rti.dds.infrastructure.StatusKind;
+import com.rti.dds.publication.Publisher;
+import com.rti.dds.subscription.DataReader;
+import com.rti.dds.subscription.DataReaderAdapter;
+import com.rti.dds.subscription.SampleInfo;
+import com.rti.dds.subscription.Subscriber;
+import com.rti.dds.topic.Topic;
+import com.rti.dds.type.builtin.Bytes;
+import com.rti.dds.type.builtin.BytesDataReader;
+import com.rti.dds.type.builtin.BytesDataWriter;
+import com.rti.dds.type.builtin.BytesTypeSupport;
+import com.rti.dds.type.builtin.StringDataReader;
+import com.rti.dds.type.builtin.StringDataWriter;
+import com.rti.dds.type.builtin.StringTypeSupport;
+
+/**
+ * Compares the builtin String type used by HelloPublisher and
+ * HelloSubscriber with the builtin Bytes type on the same setup: one
+ * participant, default QoS, a writer and a reader with a listener.
+ * <p>
+ * The String path builds a new <code>String</code> per sample, which DDS
+ * encodes on write and decodes into another new <code>String</code> on
+ * take.  The Bytes path refills one preallocated buffer, which DDS copies
+ * on write, and takes into a holder whose buffer is reused, so neither side
+ * allocates per sample.  Both paths carry the same text.  The report gives
+ * the sample rate and the bytes allocated per sample by the writing and the
+ * listener thread.
+ */
+public class EncodingBenchmark {
+
+    private static final String STRING_TOPIC = "Hello, World";
+    private static final String BYTES_TOPIC = "Hello, World Bytes";
+
+    /**
+     * Default largest builtin String, including its terminating NUL.
+     */
+    private static final int MAX_STRING_SIZE = 1024;
+
+    /**
+     * Smallest sample: "sample " and the largest sample number.
+     */
+    private static final int MIN_SIZE = 17;
+
+    /**
+     * How long to wait for the last samples before giving up.
+     */
+    private static final long DRAIN_TIMEOUT_NANOS = 10000000000L;
+
+    public static final void main(String[] args) {
+        ProgramOptions options = new ProgramOptions();
+        options.addHelpOption();
+        Option domainId = Option.makeOption(options, "domainId", int.class, "0");
+        Option count = Option.makeOption(options, "count", int.class, "100000");
+        Option size = Option.makeOption(options, "size", int.class, "64");
+        Option rounds = Option.makeOption(options, "rounds", int.class, "3");
+        options.parseOptions(args);
+
+        if (size.asInt() < MIN_SIZE || size.asInt() >= MAX_STRING_SIZE) {
+            System.err.println("size must be between " + MIN_SIZE + " and "
+                    + (MAX_STRING_SIZE - 1));
+            return;
+        }
+
+        DomainParticipant participant = DomainParticipantFactory.get_instance().create_participant(
+                domainId.asInt(),
+                DomainParticipantFactory.PARTICIPANT_QOS_DEFAULT,
+                null, // listener
+                StatusKind.STATUS_MASK_NONE);
+        if (participant == null) {
+            System.err.println("Unable to create domain participant");
+            return;
+        }
+
+        Topic stringTopic = participant.create_topic(
+                STRING_TOPIC,
+                StringTypeSupport.get_type_name(),
+                DomainParticipant.TOPIC_QOS_DEFAULT,
+                null, // listener
+                StatusKind.STATUS_MASK_NONE);
+        Topic bytesTopic = participant.create_topic(
+                BYTES_TOPIC,
+                BytesTypeSupport.get_type_name(),
+                DomainParticipant.TOPIC_QOS_DEFAULT,
+                null, // listener
+                StatusKind.STATUS_MASK_NONE);
+        if (stringTopic == null || bytesTopic == null) {
+            System.err.println("Unable to create topic.");
+            shutdown(participant);
+            return;
+        }
+
+        StringCounter stringCounter = new StringCounter();
+        BytesCounter bytesCounter = new BytesCounter(size.asInt());
+        StringDataWriter stringWriter =
+            (StringDataWriter) participant.create_datawriter(
+                stringTopic,
+                Publisher.DATAWRITER_QOS_DEFAULT,
+                null, // listener
+                StatusKind.STATUS_MASK_NONE);
+        BytesDataWriter bytesWriter =
+            (BytesDataWriter) participant.create_datawriter(
+                bytesTopic,
+                Publisher.DATAWRITER_QOS_DEFAULT,
+                null, // listener
+                StatusKind.STATUS_MASK_NONE);
+        if (stringWriter == null || bytesWriter == null) {
+            System.err.println("Unable to create data writer");
+            shutdown(participant);
+            return;
+        }
+        DataReader stringReader = participant.create_datareader(
+                stringTopic,
+                Subscriber.DATAREADER_QOS_DEFAULT,
+                stringCounter,
+                StatusKind.DATA_AVAILABLE_STATUS);
+        DataReader bytesReader = participant.create_datareader(
+                bytesTopic,
+                Subscriber.DATAREADER_QOS_DEFAULT,
+                bytesCounter,
+                StatusKind.DATA_AVAILABLE_STATUS);
+        if (stringReader == null || bytesReader == null) {
+            System.err.println("Unable to create DDS Data Reader");
+            shutdown(participant);
+            return;
+        }
+
+        try {
+            for (int round = 0; round < rounds.asInt(); round++) {
+                runString(stringWriter, stringCounter, count.asInt(), size.asInt());
+                runBytes(bytesWriter, bytesCounter, count.asInt(), size.asInt());
+            }
+        } catch (RETCODE_ERROR e) {
+            // This exception can be thrown from DDS write operation
+            e.printStackTrace();
+        }
+        shutdown(participant);
+    }
+
+    private static void shutdown(DomainParticipant participant) {
+        System.out.println("Exiting...");
+        participant.delete_contained_entities();
+        DomainParticipantFactory.get_instance().delete_participant(participant);
+    }
+
+    private static void runString(StringDataWriter writer, Counter counter, int count,
+            int size) {
+        StringBuilder text = new StringBuilder(size);
+        long allocatedBefore = allocatedBytes(Thread.currentThread().getId());
+        long listenerBefore = counter.allocatedBytes();
+        long received = counter.expect(count);
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            text.setLength(0);
+            text.append("sample ").append(i);
+            while (text.length() < size) {
+                text.append('.');
+            }
+            writer.write(text.toString(), InstanceHandle_t.HANDLE_NIL);
+        }
+        report("string", counter, received + count, start, count,
+                allocatedBytes(Thread.currentThread().getId()) - allocatedBefore,
+                listenerBefore);
+    }
+
+    private static void runBytes(BytesDataWriter writer, Counter counter, int count, int size) {
+        // DDS copies the sample on write, so one buffer serves every write
+        Bytes sample = new Bytes();
+        sample.value = new byte[size];
+        sample.offset = 0;
+        sample.length = size;
+        long allocatedBefore = allocatedBytes(Thread.currentThread().getId());
+        long listenerBefore = counter.allocatedBytes();
+        long received = counter.expect(count);
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            fill(sample.value, size, i);
+            writer.write(sample, InstanceHandle_t.HANDLE_NIL);
+        }
+        report("bytes", counter, received + count, start, count,
+                allocatedBytes(Thread.currentThread().getId()) - allocatedBefore,
+                listenerBefore);
+    }
+
+    /**
+     * Writes "sample <i>" padded with dots, the same text the String path
+     * sends, without going through a String.
+     */
+    private static void fill(byte[] buffer, int size, int i) {
+        int length = 0;
+        buffer[length++] = 's';
+        buffer[length++] = 'a';
+        buffer[length++] = 'm';
+        buffer[length++] = 'p';
+        buffer[length++] = 'l';
+        buffer[length++] = 'e';
+        buffer[length++] = ' ';
+        int digits = 1;
+        for (int rest = i / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        for (int d = digits - 1, rest = i; d >= 0; d--, rest /= 10) {
+            buffer[length + d] = (byte) ('0' + rest % 10);
+        }
+        length += digits;
+        while (length < size) {
+            buffer[length++] = '.';
+        }
+    }
+
+    private static void report(String label, Counter counter, long expected, long start,
+            int count, long writerAllocated, long listenerBefore) {
+        boolean drained;
+        try {
+            drained = counter.pending.await(DRAIN_TIMEOUT_NANOS, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            drained = false;
+        }
+        long elapsed = System.nanoTime() - start;
+        if (!drained) {
+            System.err.println(label + " reader missed samples, gave up after "
+                    + DRAIN_TIMEOUT_NANOS / 1000000000L + " s");
+        }
+        long received = count - (expected - counter.received.get());
+        long listenerAllocated = counter.allocatedBytes() - listenerBefore;
+        System.out.printf("%-6s received=%d/%d rate=%.0f samples/s"
+                + " allocated writer=%.1f listener=%s (bytes/sample)%n",
+                label, received, count, received * 1e9 / elapsed,
+                writerAllocated < 0 ? Double.NaN : (double) writerAllocated / count,
+                listenerBefore < 0 || listenerAllocated < 0 || received == 0 ? "n/a"
+                        : String.format("%.1f", (double) listenerAllocated / received));
+    }
+
+    /**
+     * Bytes allocated so far by thread <code>id</code>, or a negative number
+     * if the JVM does not report it.
+     */
+    private static long allocatedBytes(long id) {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (id < 0 || !(threads instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(id);
+    }
+
+    /**
+     * Counts samples and remembers which thread the middleware calls it on.
+     */
+    private abstract static class Counter extends DataReaderAdapter {
+        final AtomicLong received = new AtomicLong();
+        volatile CountDownLatch pending = new CountDownLatch(0);
+        private volatile long listenerThread = -1;
+
+        /**
+         * Starts waiting for <code>count</code> more samples.
+         * @return the number received so far
+         */
+        long expect(int count) {
+            pending = new CountDownLatch(count);
+            return received.get();
+        }
+
+        void onSample() {
+            received.incrementAndGet();
+            pending.countDown();
+        }
+
+        void enter() {
+            if (listenerThread < 0) {
+                listenerThread = Thread.currentThread().getId();
+            }
+        }
+
+        long allocatedBytes() {
+            return EncodingBenchmark.allocatedBytes(listenerThread);
+        }
+    }
+
+    private static class StringCounter extends Counter {
+        private final SampleInfo info = new SampleInfo();
+        private long characters;    // keeps the decoded text from being ignored
+
+        public void on_data_available(DataReader reader) {
+            enter();
+            StringDataReader stringReader = (StringDataReader) reader;
+            for (;;) {
+                try {
+                    String sample = stringReader.take_next_sample(info);
+                    if (info.valid_data) {
+                        characters += sample.length();
+                        onSample();
+                    }
+                } catch (RETCODE_NO_DATA noData) {
+                    // No more data to read
+                    break;
+                } catch (RETCODE_ERROR e) {
+                    // An error occurred
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private static class BytesCounter extends Counter {
+        private final SampleInfo info = new SampleInfo();
+        private final Bytes holder = new Bytes();
+        private long octets;        // keeps the taken bytes from being ignored
+
+        BytesCounter(int size) {
+            holder.value = new byte[size];
+        }
+
+        public void on_data_available(DataReader reader) {
+            enter();
+            BytesDataReader bytesReader = (BytesDataReader) reader;
+            for (;;) {
+                try {
+                    bytesReader.take_next_sample(holder, info);
+                    if (info.valid_data) {
+                        octets += holder.length;
+                        onSample();
+                    }
+                } catch (RETCODE_NO_DATA noData) {
+                    // No more data to read
+                    break;
+                } catch (RETCODE_ERROR e) {
+                    // An error occurred
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -9,22 +9,120 @@
 package com.rti.simple;
 
 import java.io.BufferedReader;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
+import com.qnap.dds.util.Conflator;
+import com.qnap.dds.util.LatencyHistogram;
+import com.qnap.dds.util.ProgramOptions;
+import com.qnap.dds.util.ProgramOptions.Option;
+import com.qnap.dds.util.SpinParkScheduler;
 import com.rti.dds.domain.DomainParticipant;
 import com.rti.dds.domain.DomainParticipantFactory;
+import com.rti.dds.infrastructure.Duration_t;
+import com.rti.dds.infrastructure.HistoryQosPolicyKind;
 import com.rti.dds.infrastructure.InstanceHandle_t;
+import com.rti.dds.infrastructure.PublishModeQosPolicyKind;
 import com.rti.dds.infrastructure.RETCODE_ERROR;
+import com.rti.dds.infrastructure.RETCODE_TIMEOUT;
 import com.rti.dds.infrastructure.StatusKind;
-import com.rti.dds.publication.Publisher;
+import com.rti.dds.publication.DataWriterQos;
+import com.rti.dds.publication.FlowController;
+import com.rti.dds.publication.FlowControllerProperty_t;
+import com.rti.dds.publication.PublicationMatchedStatus;
 import com.rti.dds.topic.Topic;
 import com.rti.dds.type.builtin.StringDataWriter;
 import com.rti.dds.type.builtin.StringTypeSupport;
 
 //****************************************************************************
 public class HelloPublisher {
+
+    // Size of the chunks read in pipe mode
+    private static final int READ_BUFFER_SIZE = 1024 * 1024;
+
+    // Longest a sample waits for its batch to fill in pipe mode
+    private static final Duration_t BATCH_FLUSH_DELAY = new Duration_t(0, 10000000);
+
+    // How long pipe mode waits for the subscribers to acknowledge at the end,
+    // on top of the time a rate-limited writer needs to send its queue
+    private static final Duration_t ACKNOWLEDGMENT_TIMEOUT = new Duration_t(10, 0);
+
+    // Largest part of a capture mapped at once in replay mode
+    private static final long REPLAY_WINDOW_SIZE = 1L << 30;
+
+    // Name of the flow controller that paces the asynchronous writer
+    private static final String FLOW_CONTROLLER_NAME = "HelloPublisher.tokenBucket";
+
+    // How often the flow controller adds tokens, roughly, in nanoseconds
+    private static final long FLOW_CONTROLLER_PERIOD_NANOS = 10000000;
+
     public static final void main(String[] args) {
+        // With -input, lines are piped from a file, or stdin if "-", instead
+        // of being typed in.  With -replay, a capture of timestamped lines is
+        // played back at -speed times its original pace, or as fast as
+        // possible if 0
+        ProgramOptions options = new ProgramOptions();
+        options.addHelpOption();
+        Option input = Option.makeStringOption(options, "input", "");
+        Option batchBytes = Option.makeOption(options, "batchBytes", int.class, "32768");
+        Option replayFile = Option.makeStringOption(options, "replay", "");
+        Option speed = Option.makeOption(options, "speed", double.class, "1.0");
+        Option spinUs = Option.makeOption(options, "spinUs", long.class, "100");
+        // With -async, write only queues samples and a separate thread sends
+        // them, at no more than -rateBytes per second if set, with bursts of
+        // up to -burstBytes.  The rate holds for packets of about
+        // -packetBytes; smaller ones are sent as if they were that large
+        Option async = Option.makeBooleanOption(options, "async", false);
+        Option rateBytes = Option.makeOption(options, "rateBytes", long.class, "0");
+        Option burstBytes = Option.makeOption(options, "burstBytes", long.class, "65536");
+        Option packetBytes = Option.makeOption(options, "packetBytes", int.class, "1024");
+        // With -conflate, a line whose first word matches that of a line not
+        // written yet replaces it, so only the latest state of each key goes
+        // out; -conflateUs sets the least time between rounds of writes
+        Option conflate = Option.makeBooleanOption(options, "conflate", false);
+        Option conflateUs = Option.makeOption(options, "conflateUs", long.class, "0");
+        options.parseOptions(args);
+        boolean pipe = input.asString().length() > 0;
+        boolean replay = replayFile.asString().length() > 0;
+        if (pipe && replay) {
+            System.err.println("-input and -replay cannot be combined");
+            return;
+        }
+        if (speed.asDouble() < 0 || spinUs.asLong() < 0) {
+            System.err.println("-speed and -spinUs must not be negative");
+            return;
+        }
+        if (rateBytes.asLong() < 0 || burstBytes.asLong() <= 0 || packetBytes.asInt() <= 0) {
+            System.err.println("-rateBytes must not be negative, -burstBytes and -packetBytes"
+                    + " must be positive");
+            return;
+        }
+        if (rateBytes.asLong() > 0 && !async.asBoolean()) {
+            System.err.println("-rateBytes needs -async");
+            return;
+        }
+        if (conflate.asBoolean() && !pipe && !replay) {
+            System.err.println("-conflate needs -input or -replay");
+            return;
+        }
+        if (conflateUs.asLong() < 0) {
+            System.err.println("-conflateUs must not be negative");
+            return;
+        }
+
+        // Paced replay writes every sample on its own so that the bursts go
+        // out as they were recorded.  The asynchronous writer sends from its
+        // own queue, and is not combined with batching
+        boolean batch = !async.asBoolean() && (pipe || replay && speed.asDouble() == 0);
+        Pacing pacing = new Pacing(async.asBoolean(), rateBytes.asLong(), packetBytes.asInt());
+
         // Create the DDS Domain participant on domain ID 0
         DomainParticipant participant = DomainParticipantFactory.get_instance().create_participant(
                 0, // Domain ID = 0
@@ -48,11 +146,23 @@ public class HelloPublisher {
             return;
         }
 
-        // Create the data writer using the default publisher
-        StringDataWriter dataWriter =
+        // Create the data writer using the default publisher, batching
+        // samples when writing as fast as possible
+        DataWriterQos writerQos = new DataWriterQos();
+        participant.get_default_datawriter_qos(writerQos);
+        if (batch) {
+            enableBatching(writerQos, batchBytes.asInt());
+        }
+        if (async.asBoolean() && !enableAsynchronousPublishing(participant, writerQos,
+                pacing, burstBytes.asLong())) {
+            participant.delete_contained_entities();
+            DomainParticipantFactory.get_instance().delete_participant(participant);
+            return;
+        }
+        final StringDataWriter dataWriter =
             (StringDataWriter) participant.create_datawriter(
                 topic, 
-                Publisher.DATAWRITER_QOS_DEFAULT,
+                writerQos,
                 null, // listener
                 StatusKind.STATUS_MASK_NONE);
         if (dataWriter == null) {
@@ -60,19 +170,72 @@ public class HelloPublisher {
             return;
         }
 
+        if (pipe || replay) {
+            Conflator<String, String> conflator = null;
+            if (conflate.asBoolean()) {
+                Conflator.Sender<String, String> sender =
+                        new Conflator.Sender<String, String>() {
+                    public void send(String key, String value) {
+                        dataWriter.write(value, InstanceHandle_t.HANDLE_NIL);
+                    }
+                };
+                conflator = new Conflator<String, String>(sender, conflateUs.asLong() * 1000);
+            }
+            try {
+                if (replay) {
+                    replay(dataWriter, conflator, replayFile.asString(), speed.asDouble(),
+                            spinUs.asLong() * 1000, pacing);
+                } else {
+                    InputStream in = input.asString().equals("-")
+                            ? System.in : new FileInputStream(input.asString());
+                    try {
+                        pipe(dataWriter, conflator, in, pacing);
+                    } finally {
+                        in.close();
+                    }
+                }
+            } catch (IOException e) {
+                // This exception can be thrown while opening or reading the input
+                e.printStackTrace();
+            } catch (RETCODE_ERROR e) {
+                // This exception can be thrown from DDS write operation
+                e.printStackTrace();
+            } finally {
+                // Normally closed already; otherwise its thread could still be
+                // writing while the writer is deleted
+                if (conflator != null) {
+                    conflator.close();
+                }
+            }
+            System.out.println("Exiting...");
+            participant.delete_contained_entities();
+            DomainParticipantFactory.get_instance().delete_participant(participant);
+            return;
+        }
+
         System.out.println("Ready to write data.");
         System.out.println("When the subscriber is ready, you can start writing.");
         System.out.print("Press CTRL+C to terminate or enter an empty line to do a clean shutdown.\n\n");
 
         BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
+        long messages = 0;
+        long messageBytes = 0;
         try {
             while (true) {
                 System.out.print("Please type a message> ");
                 String toWrite = reader.readLine();
                 if (toWrite == null) break;     // shouldn't happen
                 dataWriter.write(toWrite, InstanceHandle_t.HANDLE_NIL);
+                if (pacing.isRateLimited()) {
+                    // Only the drain timeout needs these
+                    messages++;
+                    messageBytes += utf8Length(toWrite);
+                }
                 if (toWrite.equals("")) break;
             }
+            if (async.asBoolean()) {
+                awaitAcknowledgments(dataWriter, pacing, messages, messageBytes);
+            }
         } catch (IOException e) {
             // This exception can be thrown from the BufferedReader class
             e.printStackTrace();
@@ -85,4 +248,426 @@ public class HelloPublisher {
         participant.delete_contained_entities();
         DomainParticipantFactory.get_instance().delete_participant(participant);
     }
+
+    /**
+     * Packs samples into batches of up to <code>maxBytes</code> bytes.
+     */
+    private static void enableBatching(DataWriterQos qos, int maxBytes) {
+        qos.batch.enable = true;
+        qos.batch.max_data_bytes = maxBytes;
+        qos.batch.max_flush_delay = BATCH_FLUSH_DELAY;
+    }
+
+    /**
+     * Makes <code>write</code> only queue samples, for a separate thread to
+     * send.  Every sample is kept until sent, rather than replaced by the
+     * next one.  Without a rate they are sent as fast as possible, otherwise
+     * through a token-bucket flow controller that lets bursts of up to
+     * <code>burstBytes</code> through.
+     * @return false if the flow controller could not be created
+     */
+    private static boolean enableAsynchronousPublishing(DomainParticipant participant,
+            DataWriterQos qos, Pacing pacing, long burstBytes) {
+        qos.publish_mode.kind = PublishModeQosPolicyKind.ASYNCHRONOUS_PUBLISH_MODE_QOS;
+        qos.history.kind = HistoryQosPolicyKind.KEEP_ALL_HISTORY_QOS;
+        if (pacing.bytesPerSecond == 0) {
+            return true;
+        }
+
+        // Every packet takes at least one token, however small, so a token
+        // is one expected packet: were tokens smaller, the flow controller
+        // would run out of them in packets long before it did in bytes.  The
+        // period is stretched or shrunk from FLOW_CONTROLLER_PERIOD_NANOS so
+        // that a whole number of tokens added each period makes the rate
+        long tokensPerPeriod = Math.max(1, Math.round((double) pacing.bytesPerSecond
+                * FLOW_CONTROLLER_PERIOD_NANOS / 1e9 / pacing.packetBytes));
+        long periodNanos = Math.round(
+                tokensPerPeriod * pacing.packetBytes * 1e9 / pacing.bytesPerSecond);
+        if (tokensPerPeriod > Integer.MAX_VALUE || periodNanos == 0
+                || periodNanos / 1000000000L > Integer.MAX_VALUE) {
+            System.err.println("-rateBytes is out of range for -packetBytes");
+            return false;
+        }
+        FlowControllerProperty_t property = new FlowControllerProperty_t();
+        participant.get_default_flowcontroller_property(property);
+        property.token_bucket.period = new Duration_t((int) (periodNanos / 1000000000L),
+                (int) (periodNanos % 1000000000L));
+        property.token_bucket.bytes_per_token = pacing.packetBytes;
+        property.token_bucket.tokens_added_per_period = (int) tokensPerPeriod;
+        property.token_bucket.max_tokens = (int) Math.min(Integer.MAX_VALUE,
+                Math.max(tokensPerPeriod, burstBytes / pacing.packetBytes));
+        // Unused tokens pile up to max_tokens, which is what allows bursts
+        property.token_bucket.tokens_leaked_per_period = 0;
+        FlowController flowController =
+                participant.create_flowcontroller(FLOW_CONTROLLER_NAME, property);
+        if (flowController == null) {
+            System.err.println("Unable to create flow controller");
+            return false;
+        }
+        qos.publish_mode.flow_controller_name = FLOW_CONTROLLER_NAME;
+        return true;
+    }
+
+    /**
+     * Writes every line of <code>in</code> as a sample once a subscriber
+     * has matched, and reports the rate.  The input is read in large chunks
+     * and split on the raw bytes; the only copy of a line is the String the
+     * builtin type needs.  Empty lines are skipped, since an empty sample
+     * tells HelloSubscriber to shut down.  An asynchronous writer only
+     * queues the lines, so the rate is then how fast they were queued, and
+     * how fast they were sent is reported once the queue has drained.
+     * @param conflator where to queue the lines instead of writing them
+     *        directly, or null
+     */
+    private static void pipe(StringDataWriter dataWriter, Conflator<String, String> conflator,
+            InputStream in, Pacing pacing) throws IOException {
+        awaitSubscriber(dataWriter);
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        int start = 0;      // first byte of the line being read
+        int end = 0;        // end of the bytes read so far
+        long lines = 0;
+        long bytes = 0;
+        long startNanos = System.nanoTime();
+        for (;;) {
+            if (end == buffer.length) {
+                if (start > 0) {
+                    System.arraycopy(buffer, start, buffer, 0, end - start);
+                    end -= start;
+                    start = 0;
+                } else {
+                    // A line longer than the buffer
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+            }
+            int read = in.read(buffer, end, buffer.length - end);
+            if (read < 0) {
+                break;
+            }
+            for (int i = end; i < end + read; i++) {
+                if (buffer[i] == '\n') {
+                    if (writeLine(dataWriter, conflator, buffer, start, i)) {
+                        lines++;
+                    }
+                    start = i + 1;
+                }
+            }
+            end += read;
+            bytes += read;
+        }
+        if (writeLine(dataWriter, conflator, buffer, start, end)) {
+            lines++;
+        }
+        closeConflator(conflator);
+        dataWriter.flush();
+        long elapsed = System.nanoTime() - startNanos;
+        System.out.printf("%s %d lines (%d bytes) in %.2f s: %.0f lines/s %.1f MB/s%n",
+                pacing.async ? "Queued" : "Wrote", lines, bytes, elapsed / 1e9,
+                lines * 1e9 / elapsed, bytes * 1e3 / elapsed);
+        if (awaitAcknowledgments(dataWriter, pacing, lines, bytes) && pacing.async) {
+            elapsed = System.nanoTime() - startNanos;
+            System.out.printf("Delivered in %.2f s: %.0f lines/s %.1f MB/s%n",
+                    elapsed / 1e9, lines * 1e9 / elapsed, bytes * 1e3 / elapsed);
+        }
+    }
+
+    /**
+     * Plays back a capture once a subscriber has matched.  Each line of the
+     * capture is <code>&lt;seconds&gt;[.&lt;fraction&gt;] &lt;text&gt;</code>,
+     * the timestamp being when <code>text</code> was originally sent, with
+     * a space or tab before the text.  Lines that do not start with a
+     * timestamp are skipped.
+     * <p>
+     * Every sample is written when its time comes: its offset from the first
+     * timestamp, divided by <code>speed</code>, after the replay started.
+     * Samples whose time has already passed, such as those recorded out of
+     * order, are written right away.  A <code>speed</code> of 0 writes them
+     * all as fast as possible.  How late each sample went out is reported;
+     * with an asynchronous writer, that is when it was queued.
+     * <p>
+     * The capture is memory-mapped a window at a time, so it is never read
+     * through a stream buffer.  Each sample is still copied twice: out of
+     * the window into a reused payload array, then decoded into the String
+     * the builtin type needs, since a String cannot be decoded straight
+     * from a mapped buffer.
+     * @param conflator where to queue the samples instead of writing them
+     *        directly, or null
+     * @param spinNanos how long before each sample's time to start
+     *        spinning, see <code>SpinParkScheduler</code>
+     */
+    private static void replay(StringDataWriter dataWriter, Conflator<String, String> conflator,
+            String path, double speed, long spinNanos, Pacing pacing) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            long size = channel.size();
+            awaitSubscriber(dataWriter);
+
+            SpinParkScheduler scheduler = new SpinParkScheduler(spinNanos);
+            LatencyHistogram lateness = new LatencyHistogram();
+            byte[] payload = new byte[READ_BUFFER_SIZE];
+            long base = 0;      // offset in the file of the mapped window
+            MappedByteBuffer window = mapWindow(channel, base, size);
+            int start = 0;      // first byte of the line being read
+            long firstTimestamp = -1;
+            long samples = 0;
+            long bytes = 0;
+            long skipped = 0;
+            long startNanos = System.nanoTime();
+            while (base + start < size) {
+                int end = start;
+                while (end < window.limit() && window.get(end) != '\n') {
+                    end++;
+                }
+                if (end == window.limit() && base + end < size) {
+                    // The line runs past the window: map again from its start
+                    if (start == 0) {
+                        System.err.println("Line at offset " + base + " is too long, stopping");
+                        break;
+                    }
+                    base += start;
+                    window = mapWindow(channel, base, size);
+                    start = 0;
+                    continue;
+                }
+
+                int separator = start;
+                while (separator < end && window.get(separator) != ' '
+                        && window.get(separator) != '\t') {
+                    separator++;
+                }
+                long timestamp = parseTimestamp(window, start, separator);
+                int length = end - separator - 1;
+                start = end + 1;
+                if (timestamp < 0 || length <= 0) {
+                    skipped++;
+                    continue;
+                }
+                if (length > payload.length) {
+                    payload = new byte[Math.max(length, payload.length * 2)];
+                }
+                window.position(separator + 1);
+                window.get(payload, 0, length);
+
+                if (speed > 0) {
+                    if (firstTimestamp < 0) {
+                        firstTimestamp = timestamp;
+                    }
+                    long deadline = startNanos + (long) ((timestamp - firstTimestamp) / speed);
+                    lateness.recordValue(scheduler.awaitDeadline(deadline));
+                }
+                if (writeLine(dataWriter, conflator, payload, 0, length)) {
+                    samples++;
+                    bytes += length;
+                } else {
+                    skipped++;
+                }
+            }
+            closeConflator(conflator);
+            dataWriter.flush();
+            long elapsed = System.nanoTime() - startNanos;
+            System.out.printf("%s %d samples (%d bytes) in %.2f s: %.0f samples/s %.1f MB/s,"
+                    + " skipped %d line(s)%n",
+                    pacing.async ? "Queued" : "Replayed", samples, bytes, elapsed / 1e9,
+                    samples * 1e9 / elapsed, bytes * 1e3 / elapsed, skipped);
+            if (speed > 0) {
+                lateness.print(System.out, "lateness");
+            }
+            if (awaitAcknowledgments(dataWriter, pacing, samples, bytes) && pacing.async) {
+                elapsed = System.nanoTime() - startNanos;
+                System.out.printf("Delivered in %.2f s: %.0f samples/s %.1f MB/s%n",
+                        elapsed / 1e9, samples * 1e9 / elapsed, bytes * 1e3 / elapsed);
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Maps the part of the file from <code>base</code> on, up to
+     * <code>REPLAY_WINDOW_SIZE</code> bytes.  A window is unmapped once it
+     * is garbage collected.
+     */
+    private static MappedByteBuffer mapWindow(FileChannel channel, long base, long size)
+            throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, base,
+                Math.min(REPLAY_WINDOW_SIZE, size - base));
+    }
+
+    /**
+     * Parses the timestamp between <code>from</code> and <code>to</code>,
+     * in seconds with an optional fraction.  Digits past nanoseconds are
+     * ignored.
+     * @return the timestamp in nanoseconds, or -1 if it is malformed
+     */
+    private static long parseTimestamp(MappedByteBuffer window, int from, int to) {
+        long seconds = 0;
+        int at = from;
+        while (at < to && window.get(at) >= '0' && window.get(at) <= '9') {
+            seconds = seconds * 10 + window.get(at++) - '0';
+            if (seconds >= Long.MAX_VALUE / 1000000000L) {
+                return -1;
+            }
+        }
+        if (at == from) {
+            return -1;
+        }
+        long nanos = 0;
+        long scale = 100000000;
+        if (at < to && window.get(at) == '.') {
+            at++;
+            while (at < to && window.get(at) >= '0' && window.get(at) <= '9') {
+                nanos += (window.get(at++) - '0') * scale;
+                scale /= 10;
+            }
+        }
+        if (at != to) {
+            return -1;
+        }
+        return seconds * 1000000000L + nanos;
+    }
+
+    /**
+     * Waits for the subscribers to acknowledge what was written, as deleting
+     * the writer drops whatever has not been delivered yet.  An asynchronous
+     * writer's queue is drained first, which at a limited rate is given as
+     * long as the flow controller can take to send <code>samples</code>
+     * samples of <code>bytes</code> bytes in all.
+     * @return false if the wait timed out
+     */
+    private static boolean awaitAcknowledgments(StringDataWriter dataWriter, Pacing pacing,
+            long samples, long bytes) {
+        try {
+            if (pacing.async) {
+                dataWriter.wait_for_asynchronous_publishing(pacing.drainTimeout(samples, bytes));
+            }
+            dataWriter.wait_for_acknowledgments(ACKNOWLEDGMENT_TIMEOUT);
+            return true;
+        } catch (RETCODE_TIMEOUT e) {
+            System.err.println("Not every sample was acknowledged");
+            return false;
+        }
+    }
+
+    /**
+     * Number of bytes <code>text</code> takes in UTF-8, counted without
+     * encoding it; DDS encodes it once on write.
+     */
+    private static long utf8Length(String text) {
+        long length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Writes the line between <code>from</code> and <code>to</code>, minus
+     * a trailing carriage return, unless it is empty.  With a conflator, the
+     * line is queued there instead, keyed by its first word.
+     * @return true if a sample was written or queued
+     */
+    private static boolean writeLine(StringDataWriter dataWriter,
+            Conflator<String, String> conflator, byte[] buffer, int from, int to) {
+        if (to > from && buffer[to - 1] == '\r') {
+            to--;
+        }
+        if (to == from) {
+            return false;
+        }
+        String line = new String(buffer, from, to - from, StandardCharsets.UTF_8);
+        if (conflator == null) {
+            dataWriter.write(line, InstanceHandle_t.HANDLE_NIL);
+            return true;
+        }
+        int keyEnd = 0;
+        while (keyEnd < line.length() && line.charAt(keyEnd) != ' '
+                && line.charAt(keyEnd) != '\t') {
+            keyEnd++;
+        }
+        conflator.offer(line.substring(0, keyEnd), line);
+        return true;
+    }
+
+    /**
+     * Writes what <code>conflator</code> still holds, if there is one, and
+     * reports how many updates it saved.
+     */
+    private static void closeConflator(Conflator<String, String> conflator) {
+        if (conflator == null) {
+            return;
+        }
+        conflator.close();
+        System.out.printf("Sent %d of %d updates, %d coalesced%n",
+                conflator.getSent(), conflator.getOffered(), conflator.getCoalesced());
+    }
+
+    /**
+     * Blocks until a subscriber has matched, as samples written before then
+     * would be lost.
+     */
+    private static void awaitSubscriber(StringDataWriter dataWriter) {
+        PublicationMatchedStatus status = new PublicationMatchedStatus();
+        dataWriter.get_publication_matched_status(status);
+        if (status.current_count > 0) {
+            return;
+        }
+        System.out.println("Waiting for a subscriber...");
+        while (status.current_count == 0) {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                return;
+            }
+            dataWriter.get_publication_matched_status(status);
+        }
+    }
+
+    /**
+     * How the writer sends: synchronously, or asynchronously and then at
+     * what rate.
+     */
+    private static class Pacing {
+        final boolean async;
+        final long bytesPerSecond;      // 0 for as fast as possible
+        final int packetBytes;          // size of a flow controller token
+
+        Pacing(boolean async, long bytesPerSecond, int packetBytes) {
+            this.async = async;
+            this.bytesPerSecond = bytesPerSecond;
+            this.packetBytes = packetBytes;
+        }
+
+        boolean isRateLimited() {
+            return async && bytesPerSecond > 0;
+        }
+
+        /**
+         * Longest an asynchronous writer may take to send a queue of
+         * <code>samples</code> samples and <code>bytes</code> bytes in all,
+         * plus <code>ACKNOWLEDGMENT_TIMEOUT</code>.  At a limited rate every
+         * sample takes at most one token more than its size in tokens.
+         */
+        Duration_t drainTimeout(long samples, long bytes) {
+            if (bytesPerSecond == 0) {
+                return ACKNOWLEDGMENT_TIMEOUT;
+            }
+            double seconds = ACKNOWLEDGMENT_TIMEOUT.sec
+                    + ((double) bytes + (double) samples * packetBytes) / bytesPerSecond;
+            if (seconds >= Integer.MAX_VALUE) {
+                return Duration_t.DURATION_INFINITE;
+            }
+            return new Duration_t((int) seconds, (int) ((seconds - (int) seconds) * 1e9));
+        }
+    }
 }
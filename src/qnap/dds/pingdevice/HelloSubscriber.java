@@ -8,28 +8,46 @@
 
 package com.rti.simple;
 
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+
+import com.qnap.dds.util.AsyncLogSink;
+import com.qnap.dds.util.Lifecycle;
+import com.qnap.dds.util.ProgramOptions;
+import com.qnap.dds.util.ProgramOptions.Option;
+import com.qnap.dds.util.StringReceiver;
 import com.rti.dds.domain.DomainParticipant;
 import com.rti.dds.domain.DomainParticipantFactory;
-import com.rti.dds.infrastructure.RETCODE_ERROR;
-import com.rti.dds.infrastructure.RETCODE_NO_DATA;
 import com.rti.dds.infrastructure.StatusKind;
-import com.rti.dds.subscription.DataReader;
-import com.rti.dds.subscription.DataReaderAdapter;
-import com.rti.dds.subscription.SampleInfo;
-import com.rti.dds.subscription.Subscriber;
 import com.rti.dds.topic.Topic;
-import com.rti.dds.type.builtin.StringDataReader;
 import com.rti.dds.type.builtin.StringTypeSupport;
 
 //****************************************************************************
-public class HelloSubscriber extends DataReaderAdapter {
+public class HelloSubscriber implements StringReceiver.Handler {
+
+    // How long SIGTERM waits for a clean shutdown
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 10000;
+
+    // Samples are printed from here rather than from the reader's thread
+    private final AsyncLogSink log;
+
+    // Stopped by an empty sample, for a clean shutdown sequence
+    private final Lifecycle lifecycle;
 
-    // For clean shutdown sequence
-    private static boolean shutdown_flag = false;
+    public HelloSubscriber(AsyncLogSink log, Lifecycle lifecycle) {
+        this.log = log;
+        this.lifecycle = lifecycle;
+    }
 
     public static final void main(String[] args) {
+        // -mode picks how samples are read: listener, waitset or spin
+        ProgramOptions options = new ProgramOptions();
+        options.addHelpOption();
+        Option mode = Option.makeStringOption(options, "mode", StringReceiver.LISTENER);
+        options.parseOptions(args);
+
         // Create the DDS Domain participant on domain ID 0
-        DomainParticipant participant = DomainParticipantFactory.get_instance().create_participant(
+        final DomainParticipant participant = DomainParticipantFactory.get_instance().create_participant(
                 0, // Domain ID = 0
                 DomainParticipantFactory.PARTICIPANT_QOS_DEFAULT, 
                 null, // listener
@@ -52,56 +70,60 @@ public class HelloSubscriber extends DataReaderAdapter {
         }
 
         // Create the data reader using the default subscriber
-        StringDataReader dataReader =
-            (StringDataReader) participant.create_datareader(
-                topic, 
-                Subscriber.DATAREADER_QOS_DEFAULT,
-                new HelloSubscriber(),         // Listener
-                StatusKind.DATA_AVAILABLE_STATUS);
-        if (dataReader == null) {
-            System.err.println("Unable to create DDS Data Reader");
+        final AsyncLogSink log = new AsyncLogSink(new FileOutputStream(FileDescriptor.out),
+                8192, 1024);
+        Lifecycle lifecycle = new Lifecycle(SHUTDOWN_TIMEOUT_MILLIS);
+        final StringReceiver receiver = StringReceiver.open(
+                participant,
+                topic,
+                mode.asString(),
+                new HelloSubscriber(log, lifecycle));
+        if (receiver == null) {
+            log.close();
+            lifecycle.shutdown();
             return;
         }
 
-        System.out.println("Ready to read data.");
-        System.out.println("Press CTRL+C to terminate.");
-        for (;;) {
-            try {
-                Thread.sleep(2000);
-                if(shutdown_flag) break;
-            } catch (InterruptedException e) {
-                // Nothing to do...
+        // Shut down in order: stop intake and hand over the samples already
+        // received, write out what is still queued for output, then delete
+        // the entities
+        lifecycle.addStage("close reader", new Runnable() {
+            public void run() {
+                receiver.close();
             }
-        }
-	
+        });
+        lifecycle.addStage("flush output", new Runnable() {
+            public void run() {
+                log.close();
+                if (log.getDropped() > 0) {
+                    System.out.println("Dropped " + log.getDropped()
+                            + " sample(s) from the output");
+                }
+            }
+        });
+        lifecycle.addStage("delete entities", new Runnable() {
+            public void run() {
+                participant.delete_contained_entities();
+                DomainParticipantFactory.get_instance().delete_participant(participant);
+            }
+        });
+
+        System.out.println("Ready to read data (" + receiver.getMode() + ").");
+        System.out.println("Press CTRL+C to terminate.");
+        lifecycle.awaitStop();
+
         System.out.println("Shutting down...");
-        participant.delete_contained_entities();
-        DomainParticipantFactory.get_instance().delete_participant(participant);
+        lifecycle.shutdown();
     }
 
     /*
-     * This method gets called back by DDS when one or more data samples have
-     * been received.
+     * This method gets called back by the StringReceiver for every sample
+     * received.
      */
-    public void on_data_available(DataReader reader) {
-        StringDataReader stringReader = (StringDataReader) reader;
-        SampleInfo info = new SampleInfo();
-        for (;;) {
-            try {
-                String sample = stringReader.take_next_sample(info);
-                if (info.valid_data) {
-                    System.out.println(sample);
-                    if (sample.equals("")) {
-                        shutdown_flag = true;
-                    }
-                }
-            } catch (RETCODE_NO_DATA noData) {
-                // No more data to read
-                break;
-            } catch (RETCODE_ERROR e) {
-                // An error occurred
-                e.printStackTrace();
-            }
+    public void onSample(String sample) {
+        log.log(sample);
+        if (sample.equals("")) {
+            lifecycle.stop();
         }
     }
 }
@@ -0,0 +1,221 @@
+package qnap.dds.pingdevice;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import com.rti.dds.infrastructure.InstanceHandleSeq;
+import com.rti.dds.infrastructure.InstanceHandle_t;
+import com.rti.dds.infrastructure.StatusKind;
+import com.rti.dds.publication.DataWriter;
+import com.rti.dds.publication.DataWriterAdapter;
+import com.rti.dds.publication.PublicationMatchedStatus;
+import com.rti.dds.publication.builtin.PublicationBuiltinTopicData;
+import com.rti.dds.subscription.DataReader;
+import com.rti.dds.subscription.SubscriptionMatchedStatus;
+import com.rti.dds.subscription.builtin.SubscriptionBuiltinTopicData;
+
+/**
+ * Tracks which devices currently have a PingResponder matched with the
+ * agent's request writer and reply reader, from the publication and
+ * subscription matched statuses.
+ * <p>
+ * A responder's request reader filters on its own device ID, which the
+ * writer sees in the reader's content filter parameters; its reply writer
+ * is named after the device.  A matched reader without that filter, or a
+ * matched reply writer without a name, could be serving any device.  A
+ * device is reachable once both directions have a match for it.
+ * <p>
+ * The matched statuses only name the last endpoint that matched or went
+ * away.  When several changes are folded into one callback, the matched
+ * endpoints are listed again and compared with those already known.
+ * <p>
+ * Matches are updated on middleware threads and read by the ping engine,
+ * so they are only touched under the tracker's lock.  A generation counter
+ * tells the engine whether anything changed since it last looked.
+ */
+public class MatchTracker extends DataWriterAdapter {
+
+    /**
+     * Stands for every device, for endpoints not tied to one.
+     */
+    private static final String ANY_DEVICE = "";
+
+    // Device of each matched endpoint, by instance handle
+    private final Map<InstanceHandle_t, String> requestReaders =
+        new HashMap<InstanceHandle_t, String>();
+    private final Map<InstanceHandle_t, String> replyWriters =
+        new HashMap<InstanceHandle_t, String>();
+    // Number of matched endpoints per device
+    private final Map<String, Integer> requestMatches = new HashMap<String, Integer>();
+    private final Map<String, Integer> replyMatches = new HashMap<String, Integer>();
+
+    // Reused by every matched callback
+    private final SubscriptionBuiltinTopicData readerData = new SubscriptionBuiltinTopicData();
+    private final PublicationBuiltinTopicData writerData = new PublicationBuiltinTopicData();
+    private final InstanceHandleSeq handles = new InstanceHandleSeq();
+
+    private volatile long generation;
+
+    /**
+     * Starts tracking the readers matched with <code>requestWriter</code>
+     * and the writers matched with <code>replyReader</code>, including
+     * those matched before.  The reply reader's listener must forward its
+     * subscription matched callbacks to <code>onReplyMatched</code>.
+     */
+    public void attach(DataWriter requestWriter, DataReader replyReader) {
+        requestWriter.set_listener(this, StatusKind.PUBLICATION_MATCHED_STATUS);
+        synchronized (this) {
+            resyncRequestReaders(requestWriter);
+            resyncReplyWriters(replyReader);
+        }
+    }
+
+    /*
+     * This method gets called back by DDS when a responder's request reader
+     * has matched with the request writer, or has gone away.
+     */
+    public synchronized void on_publication_matched(DataWriter writer,
+            PublicationMatchedStatus status) {
+        InstanceHandle_t handle = status.last_subscription_handle;
+        if (status.current_count_change == 1 && !requestReaders.containsKey(handle)) {
+            writer.get_matched_subscription_data(readerData, handle);
+            match(requestReaders, requestMatches, new InstanceHandle_t(handle),
+                    deviceOf(readerData));
+        } else if (status.current_count_change == -1
+                && requestReaders.containsKey(handle)) {
+            unmatch(requestReaders, requestMatches, handle);
+        } else {
+            resyncRequestReaders(writer);
+        }
+    }
+
+    /**
+     * To be called from the reply reader's <code>on_subscription_matched</code>
+     * when a responder's reply writer has matched with it, or has gone away.
+     */
+    public synchronized void onReplyMatched(DataReader reader,
+            SubscriptionMatchedStatus status) {
+        InstanceHandle_t handle = status.last_publication_handle;
+        if (status.current_count_change == 1 && !replyWriters.containsKey(handle)) {
+            reader.get_matched_publication_data(writerData, handle);
+            match(replyWriters, replyMatches, new InstanceHandle_t(handle),
+                    deviceOf(writerData));
+        } else if (status.current_count_change == -1
+                && replyWriters.containsKey(handle)) {
+            unmatch(replyWriters, replyMatches, handle);
+        } else {
+            resyncReplyWriters(reader);
+        }
+    }
+
+    private void resyncRequestReaders(DataWriter writer) {
+        writer.get_matched_subscriptions(handles);
+        Set<InstanceHandle_t> current = new HashSet<InstanceHandle_t>(handles);
+        dropUnmatched(requestReaders, requestMatches, current);
+        for (InstanceHandle_t handle : current) {
+            if (!requestReaders.containsKey(handle)) {
+                writer.get_matched_subscription_data(readerData, handle);
+                match(requestReaders, requestMatches, new InstanceHandle_t(handle),
+                        deviceOf(readerData));
+            }
+        }
+    }
+
+    private void resyncReplyWriters(DataReader reader) {
+        reader.get_matched_publications(handles);
+        Set<InstanceHandle_t> current = new HashSet<InstanceHandle_t>(handles);
+        dropUnmatched(replyWriters, replyMatches, current);
+        for (InstanceHandle_t handle : current) {
+            if (!replyWriters.containsKey(handle)) {
+                reader.get_matched_publication_data(writerData, handle);
+                match(replyWriters, replyMatches, new InstanceHandle_t(handle),
+                        deviceOf(writerData));
+            }
+        }
+    }
+
+    /**
+     * The device a responder's request reader is filtered on, as
+     * PingResponder sets it up, or <code>ANY_DEVICE</code>.
+     */
+    private static String deviceOf(SubscriptionBuiltinTopicData reader) {
+        if (!PingProtocol.REQUEST_FILTER.equals(reader.content_filter_property.filter_expression)
+                || reader.content_filter_property.expression_parameters.size() != 1) {
+            return ANY_DEVICE;
+        }
+        String parameter = (String) reader.content_filter_property.expression_parameters.get(0);
+        if (parameter.length() >= 2 && parameter.startsWith("'") && parameter.endsWith("'")) {
+            parameter = parameter.substring(1, parameter.length() - 1);
+        }
+        return parameter;
+    }
+
+    private static String deviceOf(PublicationBuiltinTopicData writer) {
+        String name = writer.publication_name.name;
+        return name == null ? ANY_DEVICE : name;
+    }
+
+    private void match(Map<InstanceHandle_t, String> endpoints, Map<String, Integer> matches,
+            InstanceHandle_t handle, String device) {
+        endpoints.put(handle, device);
+        Integer count = matches.get(device);
+        matches.put(device, count == null ? 1 : count + 1);
+        generation++;
+    }
+
+    private void unmatch(Map<InstanceHandle_t, String> endpoints, Map<String, Integer> matches,
+            InstanceHandle_t handle) {
+        release(matches, endpoints.remove(handle));
+    }
+
+    private void dropUnmatched(Map<InstanceHandle_t, String> endpoints,
+            Map<String, Integer> matches, Set<InstanceHandle_t> current) {
+        Iterator<InstanceHandle_t> known = endpoints.keySet().iterator();
+        while (known.hasNext()) {
+            InstanceHandle_t handle = known.next();
+            if (!current.contains(handle)) {
+                String device = endpoints.get(handle);
+                known.remove();
+                release(matches, device);
+            }
+        }
+    }
+
+    private void release(Map<String, Integer> matches, String device) {
+        int count = matches.get(device);
+        if (count == 1) {
+            matches.remove(device);
+        } else {
+            matches.put(device, count - 1);
+        }
+        generation++;
+    }
+
+    /**
+     * Sets <code>matched[device]</code> for each device in
+     * <code>deviceIds</code> that can currently be pinged.  Null IDs are
+     * never matched.
+     * @return the generation the result reflects
+     */
+    public synchronized long fill(String[] deviceIds, boolean[] matched) {
+        boolean anyRequest = requestMatches.containsKey(ANY_DEVICE);
+        boolean anyReply = replyMatches.containsKey(ANY_DEVICE);
+        for (int device = 0; device < deviceIds.length; device++) {
+            String id = deviceIds[device];
+            matched[device] = id != null
+                && (anyRequest || requestMatches.containsKey(id))
+                && (anyReply || replyMatches.containsKey(id));
+        }
+        return generation;
+    }
+
+    /**
+     * Changes every time an endpoint matches or goes away.
+     */
+    public long getGeneration() {
+        return generation;
+    }
+}
@@ -0,0 +1,142 @@
+package qnap.dds.pingdevice;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free table of the pings in flight, mapping a positive
+ * <code>long</code> sequence number to a <code>long</code> value such as the
+ * send time.
+ * <p>
+ * Keys and values live side by side in two primitive arrays addressed by
+ * open addressing with linear probing, so nothing is boxed and no lock is
+ * taken.  A slot is claimed with a compareAndSet, filled, and only then
+ * published by writing its key; <code>remove</code> hands the slot back by
+ * compareAndSet-ing the key to empty, so when a reply and a timeout race for
+ * the same ping exactly one of them gets its value.  Freed slots are reused
+ * by later <code>put</code>s.
+ * <p>
+ * Removing a key leaves a hole in its probe sequence, so lookups do not stop
+ * at the first empty slot; instead they scan up to the longest probe
+ * distance any <code>put</code> has needed.  Sizing the table at twice the
+ * number of pings that can be in flight keeps that distance short.
+ */
+public class OutstandingTable {
+
+    /**
+     * Returned by <code>get</code> and <code>remove</code> when the key is
+     * not in the table.
+     */
+    public static final long MISSING = Long.MIN_VALUE;
+
+    private static final long EMPTY = 0;
+
+    // Marks a slot that is being filled and must not be matched yet
+    private static final long CLAIMED = -1;
+
+    private final AtomicLongArray keys;
+    private final AtomicLongArray values;
+    private final int mask;
+
+    private final AtomicInteger maxProbe = new AtomicInteger();
+
+    /**
+     * Creates a table able to hold at least <code>expectedEntries</code>
+     * entries at once.
+     */
+    public OutstandingTable(int expectedEntries) {
+        if (expectedEntries < 1 || expectedEntries > (1 << 29)) {
+            throw new IllegalArgumentException("expectedEntries out of range: " + expectedEntries);
+        }
+        int capacity = Integer.highestOneBit(expectedEntries * 2 - 1) << 1;
+        if (capacity < 16) {
+            capacity = 16;
+        }
+        keys = new AtomicLongArray(capacity);
+        values = new AtomicLongArray(capacity);
+        mask = capacity - 1;
+    }
+
+    /**
+     * Adds an entry.  Safe to call from several threads, but each key must be
+     * put at most once while it is in the table.
+     * @param key a positive key
+     * @param value the value to associate with <code>key</code>
+     * @throws IllegalStateException if the table is full
+     */
+    public void put(long key, long value) {
+        if (key <= 0) {
+            throw new IllegalArgumentException("key must be positive: " + key);
+        }
+        int start = hash(key);
+        for (int probe = 0; probe <= mask; probe++) {
+            int slot = (start + probe) & mask;
+            if (keys.get(slot) == EMPTY && keys.compareAndSet(slot, EMPTY, CLAIMED)) {
+                values.set(slot, value);
+                raiseMaxProbe(probe);
+                keys.set(slot, key);
+                return;
+            }
+        }
+        throw new IllegalStateException("outstanding table full");
+    }
+
+    /**
+     * Returns the value associated with <code>key</code>, or
+     * <code>MISSING</code>.
+     */
+    public long get(long key) {
+        int slot = find(key);
+        if (slot < 0) {
+            return MISSING;
+        }
+        long value = values.get(slot);
+        return keys.get(slot) == key ? value : MISSING;
+    }
+
+    /**
+     * Removes <code>key</code> and frees its slot.  When several threads
+     * remove the same key, exactly one of them gets the value.
+     * @return the value that was associated with <code>key</code>, or
+     *         <code>MISSING</code> if another thread removed it first or it
+     *         was never there
+     */
+    public long remove(long key) {
+        int slot = find(key);
+        if (slot < 0) {
+            return MISSING;
+        }
+        long value = values.get(slot);
+        return keys.compareAndSet(slot, key, EMPTY) ? value : MISSING;
+    }
+
+    private int find(long key) {
+        if (key <= 0) {
+            return -1;
+        }
+        int start = hash(key);
+        int limit = maxProbe.get();
+        for (int probe = 0; probe <= limit; probe++) {
+            int slot = (start + probe) & mask;
+            if (keys.get(slot) == key) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private void raiseMaxProbe(int probe) {
+        // Only ever grows, so this loop runs on the rare long probe only
+        int current;
+        while (probe > (current = maxProbe.get())) {
+            if (maxProbe.compareAndSet(current, probe)) {
+                return;
+            }
+        }
+    }
+
+    private int hash(long key) {
+        // Fibonacci hashing spreads keys that differ only in their high bits
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+    }
+}
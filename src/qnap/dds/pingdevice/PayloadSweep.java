@@ -0,0 +1,91 @@
+package qnap.dds.pingdevice;
+
+import java.util.List;
+
+import com.qnap.dds.util.LatencyHistogram;
+
+/**
+ * Runs a <code>DevicePing</code> once per payload size and prints one line
+ * per size: send and reply rates, goodput and round trip percentiles.  The
+ * curve shows where serialization and, past
+ * <code>PingProtocol.MAX_SYNCHRONOUS_PAYLOAD</code>, fragmentation start to
+ * cost.
+ */
+public class PayloadSweep {
+
+    private final DevicePing ping;
+
+    /**
+     * @param ping an engine opened with the largest payload size to sweep
+     */
+    public PayloadSweep(DevicePing ping) {
+        this.ping = ping;
+    }
+
+    /**
+     * Parses a list of payload sizes, or a geometric range written
+     * <code>from-to</code> that is multiplied by <code>factor</code> at
+     * each step.
+     * @throws IllegalArgumentException if a size is not a number, or is
+     *         smaller than the ping header or larger than an array can be
+     */
+    static int[] parseSizes(List<String> sizes, int factor) {
+        if (sizes.size() == 1 && sizes.get(0).indexOf('-') > 0) {
+            String range = sizes.get(0);
+            int dash = range.indexOf('-');
+            long from = Long.parseLong(range.substring(0, dash));
+            long to = Long.parseLong(range.substring(dash + 1));
+            if (from < PingProtocol.HEADER_SIZE || to < from || to > Integer.MAX_VALUE
+                    || factor < 2) {
+                throw new IllegalArgumentException("bad payload range: " + range);
+            }
+            int steps = 0;
+            for (long size = from; size <= to; size *= factor) {
+                steps++;
+            }
+            int[] sweep = new int[steps];
+            long size = from;
+            for (int i = 0; i < steps; i++, size *= factor) {
+                sweep[i] = (int) size;
+            }
+            return sweep;
+        }
+        int[] sweep = new int[sizes.size()];
+        for (int i = 0; i < sweep.length; i++) {
+            long size = Long.parseLong(sizes.get(i));
+            if (size < PingProtocol.HEADER_SIZE || size > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("bad payload size: " + size);
+            }
+            sweep[i] = (int) size;
+        }
+        return sweep;
+    }
+
+    /**
+     * Pings the first <code>devices</code> devices at each of
+     * <code>payloadSizes</code>.
+     * @see DevicePing#run(int, int, long, long)
+     */
+    public void run(int[] payloadSizes, int devices, int count, long intervalNanos,
+            long timeoutNanos) {
+        System.out.printf("%10s %12s %12s %10s %10s %10s %10s %8s%n", "payload",
+                "sent/s", "replies/s", "MB/s", "p50(us)", "p99(us)", "p99.9(us)", "lost");
+        for (int i = 0; i < payloadSizes.length; i++) {
+            int size = payloadSizes[i];
+            ping.setPayloadSize(size);
+            ping.run(devices, count, intervalNanos, timeoutNanos);
+
+            LatencyHistogram histogram = ping.getHistogram();
+            double sendRate = ping.getSendNanos() == 0 ? 0.0
+                    : ping.getSent() * 1e9 / ping.getSendNanos();
+            double replyRate = ping.getElapsedNanos() == 0 ? 0.0
+                    : ping.getAnswered() * 1e9 / ping.getElapsedNanos();
+            System.out.printf("%10d %12.0f %12.0f %10.2f %10.1f %10.1f %10.1f %8d%n",
+                    size, sendRate, replyRate, replyRate * size / 1e6,
+                    histogram.getValueAtPercentile(50.0) / 1000.0,
+                    histogram.getValueAtPercentile(99.0) / 1000.0,
+                    histogram.getValueAtPercentile(99.9) / 1000.0,
+                    ping.getLost());
+        }
+    }
+}
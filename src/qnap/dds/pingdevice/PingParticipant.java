@@ -0,0 +1,218 @@
+package qnap.dds.pingdevice;
+
+import com.rti.dds.domain.DomainParticipant;
+import com.rti.dds.domain.DomainParticipantFactory;
+import com.rti.dds.domain.DomainParticipantQos;
+import com.rti.dds.infrastructure.PropertyQosPolicyHelper;
+import com.rti.dds.infrastructure.PublishModeQosPolicyKind;
+import com.rti.dds.infrastructure.StatusKind;
+import com.rti.dds.publication.DataWriterQos;
+import com.rti.dds.publication.Publisher;
+import com.rti.dds.subscription.DataReaderListener;
+import com.rti.dds.subscription.Subscriber;
+import com.rti.dds.topic.Topic;
+import com.rti.dds.topic.TopicDescription;
+import com.rti.dds.type.builtin.KeyedBytesDataReader;
+import com.rti.dds.type.builtin.KeyedBytesDataWriter;
+import com.rti.dds.type.builtin.KeyedBytesTypeSupport;
+import com.rti.dds.util.StringSeq;
+
+/**
+ * The DDS entities of a ping agent: a participant with the request writer
+ * and the reply reader.
+ * <p>
+ * The reader is created by a second call, <code>attachReplyListener</code>,
+ * because the listener usually needs the writer before it can be built.
+ */
+class PingParticipant {
+
+    final DomainParticipant participant;
+    final KeyedBytesDataWriter requestWriter;
+    private final TopicDescription replies;
+
+    private PingParticipant(DomainParticipant participant,
+            KeyedBytesDataWriter requestWriter, TopicDescription replies) {
+        this.participant = participant;
+        this.requestWriter = requestWriter;
+        this.replies = replies;
+    }
+
+    /**
+     * Creates the participant, both topics and the request writer.
+     * @param filterReplies when true, replies are only subscribed to for
+     *        keys between the lowest and the highest of
+     *        <code>deviceIds</code>, which lets writers filter out everything
+     *        else before it is sent.  Participants given disjoint ranges of
+     *        IDs each only receive their own devices' replies.
+     * @param filterName name of the filtered topic, unique per participant
+     * @param maxPayloadSize largest ping payload that will be written
+     * @return the new entities, or null if one could not be created
+     */
+    static PingParticipant create(int domainId, String[] deviceIds,
+            boolean filterReplies, String filterName, int maxPayloadSize) {
+        DomainParticipant participant = DomainParticipantFactory.get_instance().create_participant(
+                domainId,
+                participantQos(maxPayloadSize, null),
+                null, // listener
+                StatusKind.STATUS_MASK_NONE);
+        if (participant == null) {
+            System.err.println("Unable to create domain participant");
+            return null;
+        }
+
+        Topic requestTopic = participant.create_topic(
+                PingProtocol.REQUEST_TOPIC,
+                KeyedBytesTypeSupport.get_type_name(),
+                DomainParticipant.TOPIC_QOS_DEFAULT,
+                null, // listener
+                StatusKind.STATUS_MASK_NONE);
+        Topic replyTopic = participant.create_topic(
+                PingProtocol.REPLY_TOPIC,
+                KeyedBytesTypeSupport.get_type_name(),
+                DomainParticipant.TOPIC_QOS_DEFAULT,
+                null, // listener
+                StatusKind.STATUS_MASK_NONE);
+        if (requestTopic == null || replyTopic == null) {
+            System.err.println("Unable to create topic.");
+            delete(participant);
+            return null;
+        }
+
+        TopicDescription replies = replyTopic;
+        StringSeq filterParameters = filterReplies ? keyRange(deviceIds) : null;
+        if (filterParameters != null) {
+            replies = participant.create_contentfilteredtopic(
+                    filterName,
+                    replyTopic,
+                    PingProtocol.REPLY_RANGE_FILTER,
+                    filterParameters);
+            if (replies == null) {
+                System.err.println("Unable to create content filtered topic.");
+                delete(participant);
+                return null;
+            }
+        }
+
+        KeyedBytesDataWriter requestWriter =
+            (KeyedBytesDataWriter) participant.create_datawriter(
+                requestTopic,
+                writerQos(participant, maxPayloadSize, null),
+                null, // listener
+                StatusKind.STATUS_MASK_NONE);
+        if (requestWriter == null) {
+            System.err.println("Unable to create data writer");
+            delete(participant);
+            return null;
+        }
+        return new PingParticipant(participant, requestWriter, replies);
+    }
+
+    /**
+     * Filter parameters for the range of keys spanned by
+     * <code>deviceIds</code>.  The filter stays two short parameters however
+     * many devices there are, well within the middleware's default limit on
+     * filter length.
+     * @return the parameters, or null if a bound cannot be quoted, in which
+     *         case every reply is subscribed to
+     */
+    private static StringSeq keyRange(String[] deviceIds) {
+        String lowest = null;
+        String highest = null;
+        for (int i = 0; i < deviceIds.length; i++) {
+            String id = deviceIds[i];
+            if (id == null) {
+                continue;
+            }
+            if (lowest == null || id.compareTo(lowest) < 0) {
+                lowest = id;
+            }
+            if (highest == null || id.compareTo(highest) > 0) {
+                highest = id;
+            }
+        }
+        if (lowest == null) {
+            return null;
+        }
+        if (lowest.indexOf('\'') >= 0 || highest.indexOf('\'') >= 0) {
+            System.err.println("Not filtering replies: device ID contains a quote");
+            return null;
+        }
+        StringSeq parameters = new StringSeq(2);
+        parameters.add("'" + lowest + "'");
+        parameters.add("'" + highest + "'");
+        return parameters;
+    }
+
+    /**
+     * Participant QoS that lets the builtin KeyedBytes type carry
+     * <code>maxPayloadSize</code> bytes.
+     * @param name participant name announced through discovery, or null
+     */
+    static DomainParticipantQos participantQos(int maxPayloadSize, String name) {
+        if (maxPayloadSize <= PingProtocol.DEFAULT_MAX_PAYLOAD && name == null) {
+            return DomainParticipantFactory.PARTICIPANT_QOS_DEFAULT;
+        }
+        DomainParticipantQos qos = new DomainParticipantQos();
+        DomainParticipantFactory.get_instance().get_default_participant_qos(qos);
+        if (maxPayloadSize > PingProtocol.DEFAULT_MAX_PAYLOAD) {
+            PropertyQosPolicyHelper.add_property(qos.property, PingProtocol.MAX_SIZE_PROPERTY,
+                    Integer.toString(maxPayloadSize), false);
+        }
+        if (name != null) {
+            qos.participant_name.name = name;
+        }
+        return qos;
+    }
+
+    /**
+     * Writer QoS for pings of up to <code>maxPayloadSize</code> bytes:
+     * asynchronous once they have to be fragmented.
+     * @param name writer name announced through discovery, or null
+     */
+    static DataWriterQos writerQos(DomainParticipant participant, int maxPayloadSize,
+            String name) {
+        if (maxPayloadSize <= PingProtocol.MAX_SYNCHRONOUS_PAYLOAD && name == null) {
+            return Publisher.DATAWRITER_QOS_DEFAULT;
+        }
+        DataWriterQos qos = new DataWriterQos();
+        participant.get_default_datawriter_qos(qos);
+        if (maxPayloadSize > PingProtocol.MAX_SYNCHRONOUS_PAYLOAD) {
+            qos.publish_mode.kind = PublishModeQosPolicyKind.ASYNCHRONOUS_PUBLISH_MODE_QOS;
+        }
+        if (name != null) {
+            qos.publication_name.name = name;
+        }
+        return qos;
+    }
+
+    /**
+     * Creates the reply reader with <code>listener</code> attached.
+     * @param statusMask statuses the listener is called for
+     * @return the reader, or null if it could not be created
+     */
+    KeyedBytesDataReader attachReplyListener(DataReaderListener listener, int statusMask) {
+        KeyedBytesDataReader replyReader =
+            (KeyedBytesDataReader) participant.create_datareader(
+                replies,
+                Subscriber.DATAREADER_QOS_DEFAULT,
+                listener,
+                statusMask);
+        if (replyReader == null) {
+            System.err.println("Unable to create DDS Data Reader");
+        }
+        return replyReader;
+    }
+
+    /**
+     * Deletes the participant and everything it contains.
+     */
+    void close() {
+        delete(participant);
+    }
+
+    private static void delete(DomainParticipant participant) {
+        System.out.println("Exiting...");
+        participant.delete_contained_entities();
+        DomainParticipantFactory.get_instance().delete_participant(participant);
+    }
+}
@@ -0,0 +1,184 @@
+package qnap.dds.pingdevice;
+
+/**
+ * Topic names and wire layout shared by the ping agent and the responder.
+ * <p>
+ * A ping is a builtin KeyedBytes sample whose key is the ID of the device
+ * being pinged, so a single writer and reader address the whole fleet as
+ * separate instances.  The value holds big-endian fields at the offsets
+ * below: the first <code>HEADER_SIZE</code> bytes always, the responder's
+ * timestamps if there is room for them.  Anything after that is padding
+ * used to reach the requested payload size and is echoed untouched.
+ * <p>
+ * The ping ID packs the agent's index for the device into its top
+ * <code>64 - SEQ_BITS</code> bits and a per-device sequence number into the
+ * rest, so a reply can be tied back to its device without looking up the
+ * key.
+ * <p>
+ * Times on the wire are wall clock nanoseconds, see <code>toWallClock</code>.
+ * When a ping is at least <code>TIMESTAMPED_SIZE</code> bytes the responder
+ * also stamps when it received the request and when it sent the reply, which
+ * gives the agent the four timestamps NTP uses to estimate clock offset.
+ */
+public final class PingProtocol {
+
+    /**
+     * Topic on which the agent publishes ping requests.
+     */
+    public static final String REQUEST_TOPIC = "DevicePing Request";
+
+    /**
+     * Topic on which responders echo the requests back.
+     */
+    public static final String REPLY_TOPIC = "DevicePing Reply";
+
+    /**
+     * Start of a responder's participant name, followed by its device ID,
+     * which tells responders apart from other named participants.
+     */
+    public static final String RESPONDER_NAME_PREFIX = "DevicePing Responder ";
+
+    /**
+     * Content filter by which a responder takes only the requests for its
+     * own device, with the quoted device ID as parameter.
+     */
+    public static final String REQUEST_FILTER = "key = %0";
+
+    /**
+     * Content filter by which a pinger takes only the replies of a range of
+     * devices, with the quoted lowest and highest device IDs as parameters.
+     * Keys are compared character by character.
+     */
+    public static final String REPLY_RANGE_FILTER = "key >= %0 AND key <= %1";
+
+    /**
+     * Offset of the ping ID.
+     */
+    public static final int ID_OFFSET = 0;
+
+    /**
+     * Offset of the agent's wall clock at send time.
+     */
+    public static final int SEND_TIME_OFFSET = 8;
+
+    /**
+     * Offset of the responder's wall clock when it took the request.
+     */
+    public static final int RECEIVE_TIME_OFFSET = 16;
+
+    /**
+     * Offset of the responder's wall clock just before it wrote the reply.
+     */
+    public static final int TRANSMIT_TIME_OFFSET = 24;
+
+    /**
+     * Smallest ping the responder timestamps.
+     */
+    public static final int TIMESTAMPED_SIZE = 32;
+
+    /**
+     * Smallest valid ping payload.
+     */
+    public static final int HEADER_SIZE = 16;
+
+    /**
+     * Largest payload the builtin KeyedBytes type carries by default.  Both
+     * sides must raise <code>MAX_SIZE_PROPERTY</code> on their participant
+     * to go beyond it.
+     */
+    public static final int DEFAULT_MAX_PAYLOAD = 2048;
+
+    /**
+     * Participant property holding the builtin KeyedBytes maximum size.
+     */
+    public static final String MAX_SIZE_PROPERTY = "dds.builtin_type.keyed_octets.max_size";
+
+    /**
+     * Largest payload written synchronously.  Bigger samples do not fit in
+     * one UDP datagram and are fragmented, which needs an asynchronous
+     * writer.
+     */
+    public static final int MAX_SYNCHRONOUS_PAYLOAD = 63 * 1024;
+
+    /**
+     * Number of low bits of a ping ID holding the sequence number.
+     */
+    public static final int SEQ_BITS = 40;
+
+    /**
+     * Largest number of devices a single agent can address.
+     */
+    public static final int MAX_DEVICES = 1 << (63 - SEQ_BITS);
+
+    private static final long SEQ_MASK = (1L << SEQ_BITS) - 1;
+
+    /**
+     * Wall clock minus <code>System.nanoTime</code>, in nanoseconds.
+     */
+    private static final long WALL_CLOCK_BASE = calibrateWallClock();
+
+    private PingProtocol() {
+    }
+
+    private static long calibrateWallClock() {
+        // Waiting for the millisecond to tick over pins the base down to
+        // far better than a millisecond
+        long millis = System.currentTimeMillis();
+        long next;
+        do {
+            next = System.currentTimeMillis();
+        } while (next == millis);
+        return next * 1000000L - System.nanoTime();
+    }
+
+    /**
+     * Converts a <code>System.nanoTime</code> reading to nanoseconds since
+     * the epoch.  Nanosecond resolution and monotonic, but only as accurate
+     * as the wall clock was when this class was loaded.
+     */
+    public static long toWallClock(long nanoTime) {
+        return nanoTime + WALL_CLOCK_BASE;
+    }
+
+    /**
+     * Packs a device index and a sequence number into a ping ID.
+     */
+    public static long pingId(int device, long seq) {
+        return ((long) device << SEQ_BITS) | (seq & SEQ_MASK);
+    }
+
+    /**
+     * Extracts the device index from a ping ID.
+     */
+    public static int deviceOf(long pingId) {
+        return (int) (pingId >>> SEQ_BITS);
+    }
+
+    /**
+     * Extracts the sequence number from a ping ID.
+     */
+    public static long seqOf(long pingId) {
+        return pingId & SEQ_MASK;
+    }
+
+    /**
+     * Writes <code>value</code> big-endian at <code>buffer[offset]</code>.
+     */
+    public static void putLong(byte[] buffer, int offset, long value) {
+        for (int i = 7; i >= 0; i--) {
+            buffer[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    /**
+     * Reads a big-endian long from <code>buffer[offset]</code>.
+     */
+    public static long getLong(byte[] buffer, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (buffer[offset + i] & 0xff);
+        }
+        return value;
+    }
+}
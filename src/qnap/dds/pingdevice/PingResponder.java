@@ -0,0 +1,197 @@
+package qnap.dds.pingdevice;
+
+import com.qnap.dds.util.Lifecycle;
+import com.qnap.dds.util.ProgramOptions;
+import com.qnap.dds.util.ProgramOptions.Option;
+import com.rti.dds.domain.DomainParticipant;
+import com.rti.dds.domain.DomainParticipantFactory;
+import com.rti.dds.infrastructure.InstanceHandle_t;
+import com.rti.dds.infrastructure.RETCODE_ERROR;
+import com.rti.dds.infrastructure.RETCODE_NO_DATA;
+import com.rti.dds.infrastructure.StatusKind;
+import com.rti.dds.subscription.DataReader;
+import com.rti.dds.subscription.DataReaderAdapter;
+import com.rti.dds.subscription.SampleInfo;
+import com.rti.dds.subscription.Subscriber;
+import com.rti.dds.topic.ContentFilteredTopic;
+import com.rti.dds.topic.Topic;
+import com.rti.dds.type.builtin.KeyedBytes;
+import com.rti.dds.type.builtin.KeyedBytesDataReader;
+import com.rti.dds.type.builtin.KeyedBytesDataWriter;
+import com.rti.dds.type.builtin.KeyedBytesTypeSupport;
+import com.rti.dds.util.StringSeq;
+
+/**
+ * Echo responder run on each device.  Every ping request addressed to this
+ * device on <code>PingProtocol.REQUEST_TOPIC</code> is written back on
+ * <code>PingProtocol.REPLY_TOPIC</code>.  Requests for other devices are
+ * dropped by a content filter on the key before they reach the listener.
+ * <p>
+ * The <code>SampleInfo</code> and the sample holder are created once, and
+ * the holder's own buffer is what gets written back.  The one allocation
+ * left per request is the key: taking a KeyedBytes sample decodes its
+ * device ID into a new <code>String</code>, so since pings became keyed the
+ * reply path is no longer entirely allocation-free.  Requests long enough
+ * to carry them get the responder's receive and transmit times stamped
+ * into their header on the way.
+ * <p>
+ * Pings above <code>PingProtocol.DEFAULT_MAX_PAYLOAD</code> are only
+ * received when <code>-maxPayloadSize</code> is at least as large as the
+ * agent's.
+ */
+public class PingResponder extends DataReaderAdapter {
+
+    // How long SIGTERM waits for a clean shutdown
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 10000;
+
+    private final KeyedBytesDataWriter replyWriter;
+    private final InstanceHandle_t replyInstance;
+
+    // Reused by every on_data_available callback
+    private final KeyedBytes requestHolder = new KeyedBytes();
+    private final SampleInfo requestInfo = new SampleInfo();
+
+    public PingResponder(KeyedBytesDataWriter replyWriter, String deviceId) {
+        this.replyWriter = replyWriter;
+        requestHolder.key = deviceId;
+        this.replyInstance = replyWriter.register_instance(requestHolder);
+    }
+
+    public static final void main(String[] args) {
+        ProgramOptions options = new ProgramOptions();
+        options.addHelpOption();
+        Option domainId = Option.makeOption(options, "domainId", int.class, "0");
+        Option deviceId = Option.makeStringOption(options, "deviceId", null);
+        Option maxPayloadSize = Option.makeOption(options, "maxPayloadSize", int.class,
+                Integer.toString(PingProtocol.DEFAULT_MAX_PAYLOAD));
+        options.parseOptions(args);
+
+        // The participant and the reply writer are named after the device,
+        // for agents running DeviceDiscovery
+        final DomainParticipant participant =
+            DomainParticipantFactory.get_instance().create_participant(
+                domainId.asInt(),
+                PingParticipant.participantQos(maxPayloadSize.asInt(),
+                        PingProtocol.RESPONDER_NAME_PREFIX + deviceId.asString()),
+                null, // listener
+                StatusKind.STATUS_MASK_NONE);
+        if (participant == null) {
+            System.err.println("Unable to create domain participant");
+            return;
+        }
+
+        Topic requestTopic = participant.create_topic(
+                PingProtocol.REQUEST_TOPIC,
+                KeyedBytesTypeSupport.get_type_name(),
+                DomainParticipant.TOPIC_QOS_DEFAULT,
+                null, // listener
+                StatusKind.STATUS_MASK_NONE);
+        Topic replyTopic = participant.create_topic(
+                PingProtocol.REPLY_TOPIC,
+                KeyedBytesTypeSupport.get_type_name(),
+                DomainParticipant.TOPIC_QOS_DEFAULT,
+                null, // listener
+                StatusKind.STATUS_MASK_NONE);
+        if (requestTopic == null || replyTopic == null) {
+            System.err.println("Unable to create topic.");
+            shutdown(participant);
+            return;
+        }
+
+        // Only take the requests addressed to this device
+        StringSeq filterParameters = new StringSeq(1);
+        filterParameters.add("'" + deviceId.asString() + "'");
+        ContentFilteredTopic myRequests = participant.create_contentfilteredtopic(
+                PingProtocol.REQUEST_TOPIC + " " + deviceId.asString(),
+                requestTopic,
+                PingProtocol.REQUEST_FILTER,
+                filterParameters);
+        if (myRequests == null) {
+            System.err.println("Unable to create content filtered topic.");
+            shutdown(participant);
+            return;
+        }
+
+        // The reply writer must exist before the listener can be called
+        KeyedBytesDataWriter replyWriter =
+            (KeyedBytesDataWriter) participant.create_datawriter(
+                replyTopic,
+                PingParticipant.writerQos(participant, maxPayloadSize.asInt(),
+                        deviceId.asString()),
+                null, // listener
+                StatusKind.STATUS_MASK_NONE);
+        if (replyWriter == null) {
+            System.err.println("Unable to create data writer");
+            shutdown(participant);
+            return;
+        }
+
+        final KeyedBytesDataReader requestReader =
+            (KeyedBytesDataReader) participant.create_datareader(
+                myRequests,
+                Subscriber.DATAREADER_QOS_DEFAULT,
+                new PingResponder(replyWriter, deviceId.asString()), // Listener
+                StatusKind.DATA_AVAILABLE_STATUS);
+        if (requestReader == null) {
+            System.err.println("Unable to create DDS Data Reader");
+            shutdown(participant);
+            return;
+        }
+
+        // Shut down in order: stop answering, then delete the entities
+        Lifecycle lifecycle = new Lifecycle(SHUTDOWN_TIMEOUT_MILLIS);
+        lifecycle.addStage("stop listener", new Runnable() {
+            public void run() {
+                requestReader.set_listener(null, StatusKind.STATUS_MASK_NONE);
+            }
+        });
+        lifecycle.addStage("delete entities", new Runnable() {
+            public void run() {
+                shutdown(participant);
+            }
+        });
+
+        System.out.println("Echoing pings for " + deviceId.asString()
+                + " on domain " + domainId.asInt() + ".");
+        System.out.println("Press CTRL+C to terminate.");
+        lifecycle.awaitStop();
+        lifecycle.shutdown();
+    }
+
+    private static void shutdown(DomainParticipant participant) {
+        System.out.println("Shutting down...");
+        participant.delete_contained_entities();
+        DomainParticipantFactory.get_instance().delete_participant(participant);
+    }
+
+    /*
+     * This method gets called back by DDS when one or more ping requests have
+     * been received.
+     */
+    public void on_data_available(DataReader reader) {
+        KeyedBytesDataReader requestReader = (KeyedBytesDataReader) reader;
+        for (;;) {
+            try {
+                requestReader.take_next_sample(requestHolder, requestInfo);
+                if (requestInfo.valid_data) {
+                    if (requestHolder.length >= PingProtocol.TIMESTAMPED_SIZE) {
+                        stamp(PingProtocol.RECEIVE_TIME_OFFSET);
+                        stamp(PingProtocol.TRANSMIT_TIME_OFFSET);
+                    }
+                    replyWriter.write(requestHolder, replyInstance);
+                }
+            } catch (RETCODE_NO_DATA noData) {
+                // No more data to read
+                break;
+            } catch (RETCODE_ERROR e) {
+                // An error occurred
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void stamp(int field) {
+        PingProtocol.putLong(requestHolder.value, requestHolder.offset + field,
+                PingProtocol.toWallClock(System.nanoTime()));
+    }
+}
@@ -0,0 +1,168 @@
+package qnap.dds.pingdevice;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per-device AIMD (additive increase, multiplicative decrease) control of
+ * the ping rate.
+ * <p>
+ * Every clean reply raises a device's rate by <code>increase</code> pings
+ * per second.  A timeout, or a smoothed round trip time that has grown to
+ * <code>rttFactor</code> times the lowest one seen, multiplies the rate by
+ * <code>decrease</code>.  Only one decrease is applied per round of pings
+ * in flight: after a decrease, losses and slow replies of pings sent before
+ * it are ignored.  A slow round trip only causes another decrease if it is
+ * still rising, so a high but falling estimate lets the rate recover.
+ * <p>
+ * Replies are reported by the listener thread and losses by the sender
+ * thread, so the interval and decrease bookkeeping are atomics.  The round
+ * trip estimates are only touched by the listener.
+ */
+public class RateController {
+
+    private final long minIntervalNanos;
+    private final long maxIntervalNanos;
+    private final double increase;
+    private final double decrease;
+    private final double rttFactor;
+
+    private final AtomicLongArray intervals;
+    private final AtomicLongArray lastSentSeqs;
+    private final AtomicLongArray decreasedAt;   // last sequence sent before a decrease
+
+    // Only touched by the listener thread
+    private final long[] minRtts;
+    private final long[] smoothedRtts;
+    private final long[] slowRtts;         // smoothed RTT at the last slow-down, 0 if none
+
+    /**
+     * @param increase pings per second added per clean reply
+     * @param decrease factor between 0 and 1 applied to the rate on loss
+     * @param rttFactor how far the smoothed round trip may rise above the
+     *        lowest one before it counts as congestion
+     */
+    public RateController(int deviceCount, long minIntervalNanos, long maxIntervalNanos,
+            double increase, double decrease, double rttFactor) {
+        if (minIntervalNanos < 1 || maxIntervalNanos < minIntervalNanos) {
+            throw new IllegalArgumentException("bad interval range: " + minIntervalNanos
+                    + " to " + maxIntervalNanos);
+        }
+        if (decrease <= 0.0 || decrease >= 1.0) {
+            throw new IllegalArgumentException("decrease must be between 0 and 1");
+        }
+        this.minIntervalNanos = minIntervalNanos;
+        this.maxIntervalNanos = maxIntervalNanos;
+        this.increase = increase;
+        this.decrease = decrease;
+        this.rttFactor = rttFactor;
+        this.intervals = new AtomicLongArray(deviceCount);
+        this.lastSentSeqs = new AtomicLongArray(deviceCount);
+        this.decreasedAt = new AtomicLongArray(deviceCount);
+        this.minRtts = new long[deviceCount];
+        this.smoothedRtts = new long[deviceCount];
+        this.slowRtts = new long[deviceCount];
+    }
+
+    /**
+     * Starts the first <code>devices</code> devices over at
+     * <code>intervalNanos</code>.  Must be called before the listener can
+     * report replies.
+     */
+    public void reset(int devices, long intervalNanos) {
+        long interval = clamp(intervalNanos);
+        for (int device = 0; device < devices; device++) {
+            intervals.set(device, interval);
+            decreasedAt.set(device, 0);
+            minRtts[device] = Long.MAX_VALUE;
+            smoothedRtts[device] = 0;
+            slowRtts[device] = 0;
+        }
+    }
+
+    /**
+     * Current spacing between two sends to <code>device</code>.
+     */
+    public long intervalOf(int device) {
+        return intervals.get(device);
+    }
+
+    /**
+     * Records that ping <code>seq</code> has been sent to
+     * <code>device</code>.  Sequence numbers must increase.
+     */
+    public void onSend(int device, long seq) {
+        lastSentSeqs.lazySet(device, seq);
+    }
+
+    /**
+     * Records the round trip of ping <code>seq</code>.  Listener thread only.
+     */
+    public void onReply(int device, long seq, long rttNanos) {
+        if (rttNanos < minRtts[device]) {
+            minRtts[device] = rttNanos;
+        }
+        long smoothed = smoothedRtts[device];
+        // Same 1/8 gain as TCP's smoothed RTT
+        smoothed = smoothed == 0 ? rttNanos : smoothed + (rttNanos - smoothed) / 8;
+        smoothedRtts[device] = smoothed;
+
+        if (smoothed > minRtts[device] * rttFactor) {
+            if (smoothed > slowRtts[device]) {
+                slowRtts[device] = smoothed;
+                slowDown(device, seq);
+            }
+            return;
+        }
+        slowRtts[device] = 0;
+        long interval;
+        long faster;
+        do {
+            interval = intervals.get(device);
+            faster = clamp((long) (1e9 / (1e9 / interval + increase)));
+        } while (faster != interval && !intervals.compareAndSet(device, interval, faster));
+    }
+
+    /**
+     * Records that ping <code>seq</code> timed out.
+     */
+    public void onLoss(int device, long seq) {
+        slowDown(device, seq);
+    }
+
+    private void slowDown(int device, long seq) {
+        long decreased = decreasedAt.get(device);
+        if (seq <= decreased
+                || !decreasedAt.compareAndSet(device, decreased, lastSentSeqs.get(device))) {
+            // Already slowed down for this round
+            return;
+        }
+        long interval;
+        long slower;
+        do {
+            interval = intervals.get(device);
+            slower = clamp((long) (interval / decrease));
+        } while (slower != interval && !intervals.compareAndSet(device, interval, slower));
+    }
+
+    private long clamp(long intervalNanos) {
+        return Math.max(minIntervalNanos, Math.min(maxIntervalNanos, intervalNanos));
+    }
+
+    /**
+     * Prints the lowest, mean and highest per-device rate of the first
+     * <code>devices</code> devices.
+     */
+    public void printRates(int devices) {
+        double min = Double.MAX_VALUE;
+        double max = 0.0;
+        double sum = 0.0;
+        for (int device = 0; device < devices; device++) {
+            double rate = 1e9 / intervals.get(device);
+            min = Math.min(min, rate);
+            max = Math.max(max, rate);
+            sum += rate;
+        }
+        System.out.printf("device rate: min=%.1f mean=%.1f max=%.1f (pings/s)%n",
+                min, sum / devices, max);
+    }
+}
@@ -0,0 +1,107 @@
+package qnap.dds.pingdevice;
+
+/**
+ * Finds the highest aggregate ping rate a <code>DevicePing</code> sustains
+ * while loss stays under <code>maxLossPercent</code> and the 99th
+ * percentile round trip under <code>maxP99Nanos</code>.
+ * <p>
+ * Each step is a full <code>DevicePing.run</code> at a fixed rate spread
+ * evenly over the devices.  The rate is doubled until a step fails, then
+ * binary searched between the last passing and the first failing rate.  A
+ * step also fails when the sender cannot keep up with the rate it was
+ * asked for, since the path was then never really loaded at that rate.
+ */
+public class RateSearch {
+
+    /**
+     * Fraction of the requested rate the sender must reach for a step to
+     * count.
+     */
+    private static final double MIN_SEND_RATIO = 0.9;
+
+    private final DevicePing ping;
+    private final int count;
+    private final long timeoutNanos;
+    private final double maxLossPercent;
+    private final long maxP99Nanos;
+
+    /**
+     * @param count pings per device in each step
+     * @param timeoutNanos reply timeout, see <code>DevicePing.run</code>
+     */
+    public RateSearch(DevicePing ping, int count, long timeoutNanos,
+            double maxLossPercent, long maxP99Nanos) {
+        this.ping = ping;
+        this.count = count;
+        this.timeoutNanos = timeoutNanos;
+        this.maxLossPercent = maxLossPercent;
+        this.maxP99Nanos = maxP99Nanos;
+    }
+
+    /**
+     * Searches for the sustainable rate of the first <code>devices</code>
+     * devices.
+     * @param startRate first rate to try, in pings per second
+     * @param precision search stops once the failing rate is within this
+     *        fraction of the passing one
+     * @return the highest passing rate in pings per second, or 0 if not even
+     *         one ping per second per device passed
+     */
+    public long find(int devices, long startRate, double precision) {
+        // One ping per nanosecond per device is as fast as intervals go
+        long maxRate = devices * 1000000000L;
+        long rate = Math.max(Math.min(startRate, maxRate), devices);
+        long good = 0;
+        long bad = 0;
+
+        if (passes(devices, rate)) {
+            good = rate;
+            while (bad == 0 && good < maxRate) {
+                rate = Math.min(good * 2, maxRate);
+                if (passes(devices, rate)) {
+                    good = rate;
+                } else {
+                    bad = rate;
+                }
+            }
+        } else {
+            bad = rate;
+            while (good == 0 && bad > devices) {
+                rate = Math.max(bad / 2, devices);
+                if (passes(devices, rate)) {
+                    good = rate;
+                } else {
+                    bad = rate;
+                }
+            }
+        }
+        if (good == 0 || bad == 0) {
+            return good;
+        }
+
+        while (bad - good > good * precision) {
+            rate = good + (bad - good) / 2;
+            if (passes(devices, rate)) {
+                good = rate;
+            } else {
+                bad = rate;
+            }
+        }
+        return good;
+    }
+
+    private boolean passes(int devices, long rate) {
+        long intervalNanos = Math.max(1, devices * 1000000000L / rate);
+        ping.run(devices, count, intervalNanos, timeoutNanos);
+
+        long sent = ping.getSent();
+        double lossPercent = sent == 0 ? 100.0 : 100.0 * ping.getLost() / sent;
+        long p99 = ping.getHistogram().getValueAtPercentile(99.0);
+        double sendRate = ping.getSendNanos() == 0 ? 0.0 : sent * 1e9 / ping.getSendNanos();
+        boolean passed = lossPercent <= maxLossPercent && p99 <= maxP99Nanos
+                && sendRate >= rate * MIN_SEND_RATIO;
+        System.out.printf("rate=%d sent=%.0f/s loss=%.2f%% p99=%.3fms %s%n",
+                rate, sendRate, lossPercent, p99 / 1e6, passed ? "pass" : "fail");
+        return passed;
+    }
+}
@@ -0,0 +1,242 @@
+package qnap.dds.pingdevice;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import com.qnap.dds.util.CpuTime;
+import com.qnap.dds.util.LatencyHistogram;
+import com.qnap.dds.util.ProgramOptions;
+import com.qnap.dds.util.ProgramOptions.Option;
+import com.qnap.dds.util.StringReceiver;
+import com.rti.dds.domain.DomainParticipant;
+import com.rti.dds.domain.DomainParticipantFactory;
+import com.rti.dds.infrastructure.HistoryQosPolicyKind;
+import com.rti.dds.infrastructure.InstanceHandle_t;
+import com.rti.dds.infrastructure.RETCODE_ERROR;
+import com.rti.dds.infrastructure.ReliabilityQosPolicyKind;
+import com.rti.dds.infrastructure.StatusKind;
+import com.rti.dds.publication.DataWriterQos;
+import com.rti.dds.publication.PublicationMatchedStatus;
+import com.rti.dds.subscription.DataReaderQos;
+import com.rti.dds.topic.Topic;
+import com.rti.dds.type.builtin.StringDataWriter;
+import com.rti.dds.type.builtin.StringTypeSupport;
+
+/**
+ * Compares the <code>StringReceiver</code> modes HelloSubscriber can read
+ * with, on the same setup: one participant, a String writer and one reader
+ * at a time.  Both are reliable and keep all history, so a reader that
+ * falls behind slows the writer down instead of losing samples, and every
+ * run receives all of them.
+ * <p>
+ * Every sample carries its send time, so besides the sample rate the report
+ * gives the latency from write to handler and the process CPU time used per
+ * second: a spinning reader buys its latency with a whole core.  Both are
+ * taken up to the last sample received, which the benchmark waits for
+ * without using any CPU itself.  With
+ * <code>-intervalUs 0</code> the writer goes flat out, which measures
+ * throughput; with an interval, latency without queueing.
+ */
+public class ReaderModeBenchmark {
+
+    private static final String TOPIC = "Hello, World Reader Modes";
+
+    /**
+     * How long to wait for the last samples before giving up.
+     */
+    private static final long DRAIN_TIMEOUT_NANOS = 10000000000L;
+
+    /**
+     * How long to wait for a new reader to match, or an old one to go away.
+     */
+    private static final long MATCH_TIMEOUT_MILLIS = 10000;
+
+    /**
+     * How long a write may block on a reader that has fallen behind.
+     */
+    private static final int MAX_BLOCKING_SECONDS = 10;
+
+    public static final void main(String[] args) {
+        ProgramOptions options = new ProgramOptions();
+        options.addHelpOption();
+        Option domainId = Option.makeOption(options, "domainId", int.class, "0");
+        Option modes = Option.makeStringOption(options, "modes", StringReceiver.LISTENER
+                + "," + StringReceiver.WAITSET + "," + StringReceiver.SPIN);
+        Option count = Option.makeOption(options, "count", int.class, "100000");
+        Option intervalUs = Option.makeOption(options, "intervalUs", int.class, "0");
+        Option rounds = Option.makeOption(options, "rounds", int.class, "3");
+        options.parseOptions(args);
+
+        DomainParticipant participant = DomainParticipantFactory.get_instance().create_participant(
+                domainId.asInt(),
+                DomainParticipantFactory.PARTICIPANT_QOS_DEFAULT,
+                null, // listener
+                StatusKind.STATUS_MASK_NONE);
+        if (participant == null) {
+            System.err.println("Unable to create domain participant");
+            return;
+        }
+
+        Topic topic = participant.create_topic(
+                TOPIC,
+                StringTypeSupport.get_type_name(),
+                DomainParticipant.TOPIC_QOS_DEFAULT,
+                null, // listener
+                StatusKind.STATUS_MASK_NONE);
+        if (topic == null) {
+            System.err.println("Unable to create topic.");
+            shutdown(participant);
+            return;
+        }
+
+        DataWriterQos writerQos = new DataWriterQos();
+        participant.get_default_datawriter_qos(writerQos);
+        writerQos.reliability.kind = ReliabilityQosPolicyKind.RELIABLE_RELIABILITY_QOS;
+        writerQos.reliability.max_blocking_time.sec = MAX_BLOCKING_SECONDS;
+        writerQos.reliability.max_blocking_time.nanosec = 0;
+        writerQos.history.kind = HistoryQosPolicyKind.KEEP_ALL_HISTORY_QOS;
+        StringDataWriter writer =
+            (StringDataWriter) participant.create_datawriter(
+                topic,
+                writerQos,
+                null, // listener
+                StatusKind.STATUS_MASK_NONE);
+        if (writer == null) {
+            System.err.println("Unable to create data writer");
+            shutdown(participant);
+            return;
+        }
+
+        List<String> modeList = modes.asStringList(", ");
+        try {
+            for (int round = 0; round < rounds.asInt(); round++) {
+                for (int i = 0; i < modeList.size(); i++) {
+                    if (!run(participant, topic, writer, modeList.get(i), count.asInt(),
+                            intervalUs.asInt() * 1000L)) {
+                        shutdown(participant);
+                        return;
+                    }
+                }
+            }
+        } catch (RETCODE_ERROR e) {
+            // This exception can be thrown from DDS write operation
+            e.printStackTrace();
+        }
+        shutdown(participant);
+    }
+
+    private static void shutdown(DomainParticipant participant) {
+        System.out.println("Exiting...");
+        participant.delete_contained_entities();
+        DomainParticipantFactory.get_instance().delete_participant(participant);
+    }
+
+    /**
+     * Writes <code>count</code> samples to a new reader in
+     * <code>mode</code> and prints what it took to receive them.
+     * @return false if the reader could not be set up
+     */
+    private static boolean run(DomainParticipant participant, Topic topic,
+            StringDataWriter writer, String mode, int count, long intervalNanos) {
+        DataReaderQos readerQos = new DataReaderQos();
+        participant.get_default_datareader_qos(readerQos);
+        readerQos.reliability.kind = ReliabilityQosPolicyKind.RELIABLE_RELIABILITY_QOS;
+        readerQos.history.kind = HistoryQosPolicyKind.KEEP_ALL_HISTORY_QOS;
+        Recorder recorder = new Recorder(count);
+        StringReceiver receiver = StringReceiver.open(participant, topic, mode, recorder,
+                readerQos);
+        if (receiver == null) {
+            return false;
+        }
+        // Samples written before the reader matches would be lost
+        if (!awaitMatches(writer, 1)) {
+            System.err.println("Reader did not match in time");
+            receiver.close();
+            return false;
+        }
+
+        long cpuBefore = CpuTime.processNanos();
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            if (intervalNanos > 0) {
+                long due = start + i * intervalNanos;
+                long now;
+                while ((now = System.nanoTime()) - due < 0) {
+                    LockSupport.parkNanos(due - now);
+                }
+            }
+            writer.write(Long.toString(System.nanoTime()), InstanceHandle_t.HANDLE_NIL);
+        }
+        boolean drained;
+        try {
+            drained = recorder.pending.await(DRAIN_TIMEOUT_NANOS, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            drained = false;
+        }
+        long cpuNanos = cpuBefore < 0 ? -1 : CpuTime.processNanos() - cpuBefore;
+        long received = count - recorder.pending.getCount();
+        long elapsed = recorder.lastNanos - start;
+        if (!drained) {
+            System.err.println(mode + " reader missed samples");
+        }
+
+        receiver.close();
+        awaitMatches(writer, 0);
+
+        System.out.printf("%-8s received=%d/%d rate=%.0f samples/s cpu=%s%n",
+                mode, received, count, received == 0 ? 0.0 : received * 1e9 / elapsed,
+                cpuNanos < 0 ? "n/a" : String.format("%.2f cores", (double) cpuNanos / elapsed));
+        recorder.latencies.print(System.out, "latency " + mode);
+        return true;
+    }
+
+    /**
+     * Waits until <code>writer</code> has <code>readers</code> matched
+     * readers.
+     * @return false if it did not happen in time
+     */
+    private static boolean awaitMatches(StringDataWriter writer, int readers) {
+        PublicationMatchedStatus status = new PublicationMatchedStatus();
+        long deadline = System.currentTimeMillis() + MATCH_TIMEOUT_MILLIS;
+        for (;;) {
+            writer.get_publication_matched_status(status);
+            if (status.current_count == readers) {
+                return true;
+            }
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Records the latency of every sample, from the send time it carries,
+     * and counts down the samples still expected.  Only ever called from
+     * one thread at a time.
+     */
+    private static class Recorder implements StringReceiver.Handler {
+        final LatencyHistogram latencies = new LatencyHistogram();
+        final CountDownLatch pending;
+
+        // Receive time of the latest sample; read once pending is released
+        volatile long lastNanos;
+
+        Recorder(int count) {
+            pending = new CountDownLatch(count);
+        }
+
+        public void onSample(String sample) {
+            long now = System.nanoTime();
+            latencies.recordValue(now - Long.parseLong(sample));
+            lastNanos = now;
+            pending.countDown();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package qnap.dds.pingdevice;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Queue of device indices that have sends waiting, shared between the reply
+ * listener and the sender thread.
+ * <p>
+ * Any thread may <code>offer</code> but only the sender may
+ * <code>poll</code>.  A device is in the queue at most once, so a ring with
+ * one slot per device never overflows and nothing is allocated or boxed.
+ */
+public class ReadyQueue {
+
+    private static final int EMPTY = -1;
+
+    private final AtomicIntegerArray slots;
+    private final AtomicIntegerArray queued;
+    private final AtomicLong tail = new AtomicLong();
+    private final int mask;
+    private long head;      // only touched by the consumer
+
+    /**
+     * Creates a queue for device indices 0 to <code>deviceCount - 1</code>.
+     */
+    public ReadyQueue(int deviceCount) {
+        int capacity = Integer.highestOneBit(Math.max(deviceCount, 2) - 1) << 1;
+        slots = new AtomicIntegerArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            slots.set(i, EMPTY);
+        }
+        queued = new AtomicIntegerArray(deviceCount);
+        mask = capacity - 1;
+    }
+
+    /**
+     * Queues <code>device</code> unless it is already queued.
+     */
+    public void offer(int device) {
+        if (queued.get(device) == 0 && queued.compareAndSet(device, 0, 1)) {
+            slots.lazySet((int) (tail.getAndIncrement() & mask), device);
+        }
+    }
+
+    /**
+     * True if <code>poll</code> would find nothing.  Only the consumer may
+     * call this.
+     */
+    public boolean isEmpty() {
+        return slots.get((int) (head & mask)) == EMPTY;
+    }
+
+    /**
+     * Takes the next queued device.  Once taken, a device can be queued
+     * again.
+     * @return a device index, or -1 if the queue is empty
+     */
+    public int poll() {
+        int slot = (int) (head & mask);
+        int device = slots.get(slot);
+        if (device == EMPTY) {
+            return EMPTY;
+        }
+        slots.lazySet(slot, EMPTY);
+        head++;
+        queued.set(device, 0);
+        return device;
+    }
+}
@@ -0,0 +1,165 @@
+package qnap.dds.pingdevice;
+
+import java.io.PrintStream;
+
+/**
+ * Per-device reply ordering and jitter statistics.
+ * <p>
+ * Each device keeps a fixed window of the last <code>WINDOW</code> sequence
+ * numbers it has answered, as a ring of bits indexed by sequence number.  A
+ * reply above the highest sequence seen slides the window forward; one
+ * inside the window is either a duplicate (its bit is already set) or has
+ * arrived out of order.  Replies older than the window cannot be told
+ * apart and are only counted as late.
+ * <p>
+ * Interarrival jitter follows RFC 3550: a running average, with gain 1/16,
+ * of the difference in transit time of consecutive replies.  Here the
+ * transit time is the round trip, so clock offsets do not matter.
+ * <p>
+ * Only the listener thread may record replies.
+ */
+public class ReplyStats {
+
+    public static final int IN_ORDER = 0;
+    public static final int REORDERED = 1;
+    public static final int DUPLICATE = 2;
+    public static final int LATE = 3;
+
+    private static final int WORDS = 2;
+    private static final int WINDOW = WORDS * 64;
+
+    private final long[] highestSeqs;
+    private final long[] seen;            // WORDS words per device
+    private final long[] lastTransits;
+    private final long[] scaledJitters;   // jitter times 16, as in RFC 3550
+
+    private long reordered;
+    private long duplicates;
+    private long late;
+
+    public ReplyStats(int deviceCount) {
+        highestSeqs = new long[deviceCount];
+        seen = new long[deviceCount * WORDS];
+        lastTransits = new long[deviceCount];
+        scaledJitters = new long[deviceCount];
+        reset(deviceCount);
+    }
+
+    /**
+     * Forgets everything recorded for the first <code>devices</code>
+     * devices.  Sequence numbers recorded afterwards must be above the ones
+     * recorded before.
+     */
+    public void reset(int devices) {
+        for (int device = 0; device < devices; device++) {
+            for (int word = 0; word < WORDS; word++) {
+                seen[device * WORDS + word] = 0;
+            }
+            lastTransits[device] = -1;
+            scaledJitters[device] = 0;
+        }
+        reordered = 0;
+        duplicates = 0;
+        late = 0;
+    }
+
+    /**
+     * Records a reply to ping <code>seq</code> of <code>device</code>.
+     * @param transitNanos the ping's round trip time
+     * @return <code>IN_ORDER</code>, <code>REORDERED</code>,
+     *         <code>DUPLICATE</code> or <code>LATE</code>
+     */
+    public int onReply(int device, long seq, long transitNanos) {
+        int order = IN_ORDER;
+        long highest = highestSeqs[device];
+        if (seq > highest) {
+            // Slide the window, clearing the bits of the sequences skipped
+            long first = Math.max(highest + 1, seq - WINDOW + 1);
+            for (long skipped = first; skipped < seq; skipped++) {
+                clearBit(device, skipped);
+            }
+            highestSeqs[device] = seq;
+        } else if (highest - seq >= WINDOW) {
+            late++;
+            return LATE;
+        } else if (isSet(device, seq)) {
+            duplicates++;
+            return DUPLICATE;
+        } else {
+            reordered++;
+            order = REORDERED;
+        }
+        setBit(device, seq);
+
+        long lastTransit = lastTransits[device];
+        if (lastTransit >= 0) {
+            long d = Math.abs(transitNanos - lastTransit);
+            scaledJitters[device] += d - ((scaledJitters[device] + 8) >> 4);
+        }
+        lastTransits[device] = transitNanos;
+        return order;
+    }
+
+    private boolean isSet(int device, long seq) {
+        int bit = (int) (seq % WINDOW);
+        return (seen[device * WORDS + (bit >>> 6)] & (1L << bit)) != 0;
+    }
+
+    private void setBit(int device, long seq) {
+        int bit = (int) (seq % WINDOW);
+        seen[device * WORDS + (bit >>> 6)] |= 1L << bit;
+    }
+
+    private void clearBit(int device, long seq) {
+        int bit = (int) (seq % WINDOW);
+        seen[device * WORDS + (bit >>> 6)] &= ~(1L << bit);
+    }
+
+    /**
+     * Current interarrival jitter of <code>device</code> in nanoseconds.
+     */
+    public long getJitter(int device) {
+        return scaledJitters[device] >> 4;
+    }
+
+    /**
+     * Adds the totals of the first <code>devices</code> devices to
+     * <code>summary</code>.  Devices that have not replied are left out of
+     * the jitter.  Only to be called once replies have stopped.
+     */
+    public void addTo(Summary summary, int devices) {
+        summary.reordered += reordered;
+        summary.duplicates += duplicates;
+        summary.late += late;
+        for (int device = 0; device < devices; device++) {
+            if (lastTransits[device] >= 0) {
+                long jitter = getJitter(device);
+                summary.jitterSum += jitter;
+                summary.jitterMax = Math.max(summary.jitterMax, jitter);
+                summary.devices++;
+            }
+        }
+    }
+
+    /**
+     * Fleet-wide totals, which can be collected from several ReplyStats.
+     */
+    public static class Summary {
+        private long reordered;
+        private long duplicates;
+        private long late;
+        private long jitterSum;
+        private long jitterMax;
+        private int devices;
+
+        /**
+         * Prints a one-line summary, jitter in microseconds.
+         */
+        public void print(PrintStream out) {
+            out.printf("jitter: mean=%.1f max=%.1f (us) reordered=%d duplicates=%d late=%d%n",
+                    devices == 0 ? 0.0 : jitterSum / 1000.0 / devices,
+                    jitterMax / 1000.0,
+                    reordered, duplicates, late);
+        }
+    }
+}
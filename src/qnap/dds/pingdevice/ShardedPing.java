@@ -0,0 +1,184 @@
+package qnap.dds.pingdevice;
+
+import java.util.Arrays;
+
+import com.qnap.dds.util.LatencyHistogram;
+import com.rti.dds.infrastructure.RETCODE_ERROR;
+
+/**
+ * Sorts the device list and splits it into contiguous shards, one
+ * DevicePing per shard, each run by its own sender thread.
+ * <p>
+ * Every shard has its own participant, writer, reader, outstanding table
+ * and histogram, so shards share nothing while pinging.  A separate
+ * participant per shard also gives each shard its own middleware receive
+ * threads, and each shard's reply reader filters on the range of device IDs
+ * it owns, so replies are spread across shards instead of funnelling
+ * through a single listener thread.  Shard histograms are only merged by
+ * <code>printReport</code>.
+ * <p>
+ * Java offers no portable way to pin a thread to a core; with one shard per
+ * core the OS scheduler keeps the busy sender threads spread out.
+ */
+public class ShardedPing {
+
+    private final DevicePing[] shards;
+    private final int[] shardDevices;      // devices pinged by each shard
+    private final LatencyHistogram merged = new LatencyHistogram();
+    private final LatencyHistogram mergedRaw = new LatencyHistogram();
+    private final LatencyHistogram mergedUplink = new LatencyHistogram();
+    private final LatencyHistogram mergedDownlink = new LatencyHistogram();
+    private int activeDevices;
+    private long intervalNanos;
+
+    private ShardedPing(DevicePing[] shards) {
+        this.shards = shards;
+        this.shardDevices = new int[shards.length];
+    }
+
+    /**
+     * Opens <code>shardCount</code> DevicePing shards over
+     * <code>deviceIds</code>.
+     * @return the shards, or null if one of them could not be created
+     */
+    public static ShardedPing open(int domainId, String[] deviceIds, int shardCount,
+            int payloadSize, int window, long tickNanos) {
+        if (shardCount < 1 || shardCount > deviceIds.length) {
+            throw new IllegalArgumentException("shard count out of range: " + shardCount);
+        }
+        // Sorted, each shard owns a range of IDs no other shard's falls in
+        deviceIds = deviceIds.clone();
+        Arrays.sort(deviceIds);
+        DevicePing[] shards = new DevicePing[shardCount];
+        for (int shard = 0; shard < shardCount; shard++) {
+            int from = firstDeviceOf(shard, shardCount, deviceIds.length);
+            int to = firstDeviceOf(shard + 1, shardCount, deviceIds.length);
+            String[] slice = new String[to - from];
+            System.arraycopy(deviceIds, from, slice, 0, slice.length);
+            shards[shard] = DevicePing.open(domainId, slice, from, true,
+                    payloadSize, window, tickNanos);
+            if (shards[shard] == null) {
+                for (int opened = 0; opened < shard; opened++) {
+                    shards[opened].close();
+                }
+                return null;
+            }
+        }
+        return new ShardedPing(shards);
+    }
+
+    private static int firstDeviceOf(int shard, int shardCount, int deviceCount) {
+        return (int) ((long) deviceCount * shard / shardCount);
+    }
+
+    /**
+     * Runs every shard on its own thread and waits for all of them.  The
+     * shards ping <code>devices</code> devices in all, each its share in
+     * proportion to its size; a shard whose share is 0 sits the run out.
+     * @see DevicePing#run(int, int, long, long)
+     */
+    public void run(int devices, final int count, final long intervalNanos,
+            final long timeoutNanos) {
+        int total = 0;
+        for (int i = 0; i < shards.length; i++) {
+            total += shards[i].getDeviceCount();
+        }
+        activeDevices = devices;
+        this.intervalNanos = intervalNanos;
+        Thread[] senders = new Thread[shards.length];
+        int before = 0;     // devices in the shards so far
+        for (int i = 0; i < shards.length; i++) {
+            final DevicePing shard = shards[i];
+            // Rounding cumulative shares makes them add up to devices exactly
+            int after = before + shard.getDeviceCount();
+            final int share = (int) ((long) devices * after / total)
+                    - (int) ((long) devices * before / total);
+            before = after;
+            shardDevices[i] = share;
+            if (share == 0) {
+                continue;
+            }
+            senders[i] = new Thread("DevicePing shard " + i) {
+                public void run() {
+                    try {
+                        shard.run(share, count, intervalNanos, timeoutNanos);
+                    } catch (RETCODE_ERROR e) {
+                        // This exception can be thrown from DDS write operation
+                        e.printStackTrace();
+                    }
+                }
+            };
+            senders[i].start();
+        }
+        for (int i = 0; i < senders.length; i++) {
+            if (senders[i] == null) {
+                continue;
+            }
+            try {
+                senders[i].join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Merges the shards' results and prints them like
+     * <code>DevicePing.printReport</code>.
+     */
+    public void printReport() {
+        long sent = 0;
+        long answered = 0;
+        long lost = 0;
+        long skipped = 0;
+        long abandoned = 0;
+        long sendNanos = 0;
+        long elapsedNanos = 0;
+        merged.reset();
+        mergedRaw.reset();
+        mergedUplink.reset();
+        mergedDownlink.reset();
+        for (int i = 0; i < shards.length; i++) {
+            if (shardDevices[i] == 0) {
+                continue;
+            }
+            DevicePing shard = shards[i];
+            sent += shard.getSent();
+            answered += shard.getAnswered();
+            lost += shard.getLost();
+            skipped += shard.getSkipped();
+            abandoned += shard.getAbandoned();
+            sendNanos = Math.max(sendNanos, shard.getSendNanos());
+            elapsedNanos = Math.max(elapsedNanos, shard.getElapsedNanos());
+            merged.add(shard.getHistogram());
+            mergedRaw.add(shard.getRawHistogram());
+            mergedUplink.add(shard.getUplinkHistogram());
+            mergedDownlink.add(shard.getDownlinkHistogram());
+        }
+        DevicePing.printReport(activeDevices, sent, answered, lost, sendNanos, elapsedNanos,
+                merged, intervalNanos > 0 ? mergedRaw : null);
+        ReplyStats.Summary summary = new ReplyStats.Summary();
+        ClockFilter.Summary offsets = new ClockFilter.Summary();
+        for (int i = 0; i < shards.length; i++) {
+            if (shardDevices[i] == 0) {
+                continue;
+            }
+            shards[i].getReplyStats().addTo(summary, shards[i].getActiveDevices());
+            shards[i].getClockFilter().addTo(offsets, shards[i].getActiveDevices());
+        }
+        summary.print(System.out);
+        DevicePing.printUnmatched(skipped, abandoned);
+        DevicePing.printOneWay(mergedUplink, mergedDownlink);
+        offsets.print(System.out);
+    }
+
+    /**
+     * Deletes every shard's participant.
+     */
+    public void close() {
+        for (int i = 0; i < shards.length; i++) {
+            shards[i].close();
+        }
+    }
+}
@@ -0,0 +1,417 @@
+package qnap.dds.pingdevice;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.qnap.dds.util.CpuTime;
+import com.qnap.dds.util.LatencyHistogram;
+import com.rti.dds.infrastructure.InstanceHandle_t;
+import com.rti.dds.infrastructure.RETCODE_ERROR;
+import com.rti.dds.infrastructure.RETCODE_NO_DATA;
+import com.rti.dds.infrastructure.StatusKind;
+import com.rti.dds.subscription.DataReader;
+import com.rti.dds.subscription.DataReaderAdapter;
+import com.rti.dds.subscription.SampleInfo;
+import com.rti.dds.subscription.SubscriptionMatchedStatus;
+import com.rti.dds.type.builtin.KeyedBytes;
+import com.rti.dds.type.builtin.KeyedBytesDataReader;
+import com.rti.dds.type.builtin.KeyedBytesDataWriter;
+
+/**
+ * Thread-per-device ping, the blocking counterpart of
+ * <code>DevicePing</code>.  Each device's ping loop runs on its own thread
+ * as plain blocking code: send, wait for the reply or the timeout, wait out
+ * the interval, repeat.
+ * <p>
+ * The threads are Java 21 virtual threads when the JVM has them, and
+ * platform threads otherwise, which will not scale to a large fleet.  Each
+ * thread publishes the ping ID it is waiting for; the reply listener claims
+ * it, records the round trip time and unparks the thread.
+ * <p>
+ * As in <code>DevicePing</code>, a thread only sends while its device has
+ * a responder matched, see <code>MatchTracker</code>; the sends due while
+ * it has none are skipped, and a ping whose responder goes away before it
+ * is answered is written off rather than counted as lost.
+ * <p>
+ * A virtual thread that blocks inside a <code>synchronized</code> block or
+ * a native call, as DDS writes do, pins its carrier thread.  The report
+ * shows how busy the carriers were, how often a pinned thread parked, and
+ * how much carrier time went into DDS writes, which JFR does not report as
+ * pinning since a thread blocked in native code never parks.
+ * <p>
+ * A blocking loop cannot send while it waits, so a reply slower than the
+ * interval skips sends.  The round trips those sends would have measured
+ * are back-filled into the histogram, see
+ * <code>LatencyHistogram.recordValueWithExpectedInterval</code>.
+ */
+public class VirtualThreadPing extends DataReaderAdapter {
+
+    private static final long NOT_WAITING = 0;
+
+    private final KeyedBytesDataWriter requestWriter;
+    private final String[] deviceIds;
+    private final InstanceHandle_t[] instances;
+    private final int payloadSize;
+    private final ThreadFactory factory;
+
+    /**
+     * Ping ID each device thread is waiting for, or NOT_WAITING.  The
+     * listener and the timing-out thread race to clear it; whoever wins
+     * accounts for the ping.
+     */
+    private final AtomicLongArray awaited;
+    private final AtomicLongArray sendTimes;
+    private final Thread[] waiters;
+    private final long[] nextSeq;      // each entry only touched by its device's thread
+
+    // Reused by every on_data_available callback.  Taking a sample still
+    // decodes its key into a new String, the one allocation per reply
+    private final KeyedBytes replyHolder = new KeyedBytes();
+    private final SampleInfo replyInfo = new SampleInfo();
+
+    // Written only by the listener thread
+    private final LatencyHistogram histogram = new LatencyHistogram();
+    private final LatencyHistogram rawHistogram = new LatencyHistogram();
+    private final AtomicLong answered = new AtomicLong();
+
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong lost = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();       // no responder matched
+    private final AtomicLong abandoned = new AtomicLong();     // responder went away
+    private final AtomicLong writeNanos = new AtomicLong();    // spent inside write
+
+    // Set when this VirtualThreadPing owns its participant, see open()
+    private PingParticipant endpoints;
+
+    // Which devices have a responder matched, when set by open().  The
+    // snapshot is replaced by whichever device thread first sees the
+    // tracker change; a lock that does not pin virtual threads keeps the
+    // others from doing the same work
+    private volatile MatchTracker matches;
+    private volatile boolean[] matched;
+    private volatile long matchGeneration;
+    private final ReentrantLock matchLock = new ReentrantLock();
+
+    private volatile long intervalNanos;
+    private int activeDevices;
+    private long elapsedNanos;
+    private long cpuNanos;
+    private long pinnedEvents = -1;
+
+    /**
+     * Creates a ping engine for <code>deviceIds</code>.  Its listener must be
+     * attached to the reply reader by the caller.
+     */
+    public VirtualThreadPing(KeyedBytesDataWriter requestWriter, String[] deviceIds,
+            int payloadSize) {
+        if (payloadSize < PingProtocol.HEADER_SIZE) {
+            throw new IllegalArgumentException("payload must be at least "
+                    + PingProtocol.HEADER_SIZE + " bytes");
+        }
+        if (deviceIds.length == 0 || deviceIds.length > PingProtocol.MAX_DEVICES) {
+            throw new IllegalArgumentException("device count out of range: " + deviceIds.length);
+        }
+        int devices = deviceIds.length;
+        this.requestWriter = requestWriter;
+        this.deviceIds = deviceIds;
+        this.payloadSize = payloadSize;
+        this.factory = VirtualThreads.factory("ping-");
+        this.awaited = new AtomicLongArray(devices);
+        this.sendTimes = new AtomicLongArray(devices);
+        this.waiters = new Thread[devices];
+        this.nextSeq = new long[devices];
+
+        KeyedBytes sample = new KeyedBytes();
+        sample.value = new byte[payloadSize];
+        sample.offset = 0;
+        sample.length = payloadSize;
+        this.instances = new InstanceHandle_t[devices];
+        for (int device = 0; device < devices; device++) {
+            sample.key = deviceIds[device];
+            instances[device] = requestWriter.register_instance(sample);
+        }
+    }
+
+    /**
+     * Creates a participant with the request writer and reply reader for
+     * <code>deviceIds</code> and attaches a new VirtualThreadPing to them.
+     * @return the new VirtualThreadPing, or null if an entity could not be
+     *         created
+     */
+    public static VirtualThreadPing open(int domainId, String[] deviceIds, int payloadSize) {
+        PingParticipant endpoints = PingParticipant.create(domainId, deviceIds, false,
+                PingProtocol.REPLY_TOPIC, payloadSize);
+        if (endpoints == null) {
+            return null;
+        }
+        VirtualThreadPing ping = new VirtualThreadPing(endpoints.requestWriter, deviceIds,
+                payloadSize);
+        MatchTracker matches = new MatchTracker();
+        ping.matches = matches;
+        KeyedBytesDataReader replyReader = endpoints.attachReplyListener(ping,
+                StatusKind.DATA_AVAILABLE_STATUS | StatusKind.SUBSCRIPTION_MATCHED_STATUS);
+        if (replyReader == null) {
+            endpoints.close();
+            return null;
+        }
+        matches.attach(endpoints.requestWriter, replyReader);
+        ping.endpoints = endpoints;
+        return ping;
+    }
+
+    /**
+     * Deletes the participant created by <code>open</code>.
+     */
+    public void close() {
+        if (endpoints != null) {
+            endpoints.close();
+            endpoints = null;
+        }
+    }
+
+    /**
+     * True if device loops run on virtual threads.
+     */
+    public boolean isVirtual() {
+        return factory != null;
+    }
+
+    /**
+     * Starts one thread per device for the first <code>devices</code>
+     * devices, each sending <code>count</code> stop-and-wait pings, and
+     * returns once all of them have finished.
+     * @param intervalNanos spacing between two sends to the same device
+     * @param timeoutNanos how long a thread waits for a reply before counting
+     *        its ping as lost
+     */
+    public void run(int devices, final int count, final long intervalNanos,
+            final long timeoutNanos) {
+        if (devices < 1 || devices > deviceIds.length) {
+            throw new IllegalArgumentException("device count out of range: " + devices);
+        }
+        activeDevices = devices;
+        this.intervalNanos = intervalNanos;
+        sent.set(0);
+        answered.set(0);
+        lost.set(0);
+        skipped.set(0);
+        abandoned.set(0);
+        writeNanos.set(0);
+        histogram.reset();
+        rawHistogram.reset();
+
+        VirtualThreads.PinningMonitor pinning = new VirtualThreads.PinningMonitor();
+        if (isVirtual()) {
+            pinning.start();
+        }
+        refreshMatches();
+        final CountDownLatch done = new CountDownLatch(devices);
+        long cpuStart = CpuTime.processNanos();
+        long start = System.nanoTime();
+        for (int device = 0; device < devices; device++) {
+            final int index = device;
+            final long firstSend = start + intervalNanos * device / devices;
+            Runnable loop = new Runnable() {
+                public void run() {
+                    try {
+                        pingLoop(index, count, firstSend, intervalNanos, timeoutNanos);
+                    } catch (RETCODE_ERROR e) {
+                        // This exception can be thrown from DDS write operation
+                        e.printStackTrace();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            };
+            waiters[device] = isVirtual() ? factory.newThread(loop)
+                    : new Thread(loop, "ping-" + device);
+            waiters[device].start();
+        }
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        elapsedNanos = System.nanoTime() - start;
+        cpuNanos = cpuStart < 0 ? -1 : CpuTime.processNanos() - cpuStart;
+        boolean recorded = pinning.isRecording();
+        pinning.stop();
+        pinnedEvents = recorded ? pinning.getEvents() : -1;
+        for (int device = 0; device < devices; device++) {
+            waiters[device] = null;
+        }
+    }
+
+    private void pingLoop(int device, int count, long nextSend, long intervalNanos,
+            long timeoutNanos) {
+        KeyedBytes request = new KeyedBytes();
+        request.value = new byte[payloadSize];
+        request.offset = 0;
+        request.length = payloadSize;
+        request.key = deviceIds[device];
+        for (int i = 0; i < count; i++) {
+            sleepUntil(nextSend);
+            if (!isMatched(device)) {
+                skipped.incrementAndGet();
+                nextSend = Math.max(nextSend + intervalNanos, System.nanoTime());
+                continue;
+            }
+            long pingId = PingProtocol.pingId(device, ++nextSeq[device]);
+            long now = System.nanoTime();
+            sendTimes.set(device, now);
+            awaited.set(device, pingId);
+            PingProtocol.putLong(request.value, PingProtocol.ID_OFFSET, pingId);
+            PingProtocol.putLong(request.value, PingProtocol.SEND_TIME_OFFSET,
+                    PingProtocol.toWallClock(now));
+            requestWriter.write(request, instances[device]);
+            writeNanos.addAndGet(System.nanoTime() - now);
+            sent.incrementAndGet();
+
+            long deadline = now + timeoutNanos;
+            while (awaited.get(device) == pingId) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    if (awaited.compareAndSet(device, pingId, NOT_WAITING)) {
+                        if (isMatched(device)) {
+                            lost.incrementAndGet();
+                        } else {
+                            // Its responder went away, which says nothing about the path
+                            abandoned.incrementAndGet();
+                        }
+                    }
+                    break;
+                }
+                LockSupport.parkNanos(this, left);
+            }
+            nextSend = Math.max(nextSend + intervalNanos, System.nanoTime());
+        }
+    }
+
+    /**
+     * Whether <code>device</code> has a responder matched, as of the latest
+     * snapshot.  Without a MatchTracker every device counts as matched.
+     */
+    private boolean isMatched(int device) {
+        MatchTracker tracker = matches;
+        if (tracker == null) {
+            return true;
+        }
+        if (tracker.getGeneration() != matchGeneration && matchLock.tryLock()) {
+            try {
+                refreshMatches();
+            } finally {
+                matchLock.unlock();
+            }
+        }
+        return matched[device];
+    }
+
+    /**
+     * Takes a new snapshot of the matched devices, if there is a
+     * MatchTracker.
+     */
+    private void refreshMatches() {
+        MatchTracker tracker = matches;
+        if (tracker != null) {
+            boolean[] snapshot = new boolean[deviceIds.length];
+            long generation = tracker.fill(deviceIds, snapshot);
+            matched = snapshot;
+            matchGeneration = generation;
+        }
+    }
+
+    private void sleepUntil(long deadline) {
+        long left;
+        while ((left = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(this, left);
+        }
+    }
+
+    /**
+     * Prints the results of the last <code>run</code> like
+     * <code>DevicePing.printReport</code>, followed by the carrier
+     * utilization, the number of parks while pinned and the share of
+     * carrier time spent in DDS writes.
+     */
+    public void printReport() {
+        DevicePing.printReport(activeDevices, sent.get(), answered.get(), lost.get(),
+                elapsedNanos, elapsedNanos, histogram,
+                intervalNanos > 0 ? rawHistogram : null);
+        DevicePing.printUnmatched(skipped.get(), abandoned.get());
+        // Platform threads have no carriers; report against the cores instead
+        int carriers = isVirtual() ? VirtualThreads.carrierCount()
+                : Runtime.getRuntime().availableProcessors();
+        System.out.print((isVirtual() ? "virtual" : "platform") + " threads=" + activeDevices);
+        if (cpuNanos >= 0 && elapsedNanos > 0) {
+            // Process CPU time includes the middleware's own threads, so this
+            // is an upper bound on how busy the carriers were
+            System.out.printf(" carriers=%d utilization<=%.1f%%", carriers,
+                    100.0 * cpuNanos / ((double) elapsedNanos * carriers));
+        }
+        if (pinnedEvents >= 0) {
+            System.out.print(" pinned-parks=" + pinnedEvents);
+        }
+        if (elapsedNanos > 0) {
+            // The carrier is held for the whole of each write
+            System.out.printf(" in-write=%.1f%%",
+                    100.0 * writeNanos.get() / ((double) elapsedNanos * carriers));
+        }
+        System.out.println();
+    }
+
+    /*
+     * This method gets called back by DDS when a responder's reply writer has
+     * matched with the reply reader, or has gone away.
+     */
+    public void on_subscription_matched(DataReader reader, SubscriptionMatchedStatus status) {
+        MatchTracker tracker = matches;
+        if (tracker != null) {
+            tracker.onReplyMatched(reader, status);
+        }
+    }
+
+    /*
+     * This method gets called back by DDS when one or more replies have been
+     * received.
+     */
+    public void on_data_available(DataReader reader) {
+        KeyedBytesDataReader replyReader = (KeyedBytesDataReader) reader;
+        for (;;) {
+            try {
+                replyReader.take_next_sample(replyHolder, replyInfo);
+                if (replyInfo.valid_data && replyHolder.length >= PingProtocol.HEADER_SIZE) {
+                    onReply(replyHolder.value, replyHolder.offset);
+                }
+            } catch (RETCODE_NO_DATA noData) {
+                // No more data to read
+                break;
+            } catch (RETCODE_ERROR e) {
+                // An error occurred
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void onReply(byte[] reply, int offset) {
+        long now = System.nanoTime();
+        long pingId = PingProtocol.getLong(reply, offset + PingProtocol.ID_OFFSET);
+        int device = PingProtocol.deviceOf(pingId);
+        if (device >= activeDevices) {
+            return;
+        }
+        // Read the send time before releasing the thread that owns it
+        long sendTime = sendTimes.get(device);
+        if (!awaited.compareAndSet(device, pingId, NOT_WAITING)) {
+            // A duplicate, or a late reply to a ping that has already timed out
+            return;
+        }
+        histogram.recordValueWithExpectedInterval(now - sendTime, intervalNanos);
+        rawHistogram.recordValue(now - sendTime);
+        answered.incrementAndGet();
+        LockSupport.unpark(waiters[device]);
+    }
+}
@@ -0,0 +1,131 @@
+package qnap.dds.pingdevice;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reflective access to Java 21 virtual threads and to the JFR events that
+ * report them pinning their carrier, so the rest of the project still builds
+ * and runs on older JDKs.
+ */
+final class VirtualThreads {
+
+    private static final String PINNED_EVENT = "jdk.VirtualThreadPinned";
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * Returns a factory for virtual threads, or null when the running JVM
+     * does not have them.
+     */
+    static ThreadFactory factory(String namePrefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class)
+                    .invoke(builder, namePrefix, 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Number of carrier threads virtual threads are scheduled on.
+     */
+    static int carrierCount() {
+        return Integer.getInteger("jdk.virtualThreadScheduler.parallelism",
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Counts <code>jdk.VirtualThreadPinned</code> events, raised whenever a
+     * virtual thread parks while pinned to its carrier, e.g. waiting for a
+     * monitor inside a <code>synchronized</code> block.  A thread blocked in
+     * a native call holds its carrier just as well but never parks, so it
+     * raises no event.
+     */
+    static class PinningMonitor {
+        private final AtomicLong events = new AtomicLong();
+        private Object stream;
+
+        /**
+         * Starts recording.  Does nothing when JFR event streaming is not
+         * available.
+         */
+        void start() {
+            try {
+                Class<?> streamClass = Class.forName("jdk.jfr.consumer.RecordingStream");
+                Class<?> settingsClass = Class.forName("jdk.jfr.EventSettings");
+                Class<?> durationClass = Class.forName("java.time.Duration");
+                Class<?> consumerClass = Class.forName("java.util.function.Consumer");
+                stream = streamClass.getConstructor().newInstance();
+                Object settings = streamClass.getMethod("enable", String.class)
+                        .invoke(stream, PINNED_EVENT);
+                settingsClass.getMethod("withThreshold", durationClass)
+                        .invoke(settings, durationClass.getField("ZERO").get(null));
+                Object counter = Proxy.newProxyInstance(consumerClass.getClassLoader(),
+                        new Class<?>[] { consumerClass },
+                        new InvocationHandler() {
+                            public Object invoke(Object proxy, Method method, Object[] args) {
+                                String name = method.getName();
+                                if (name.equals("accept")) {
+                                    events.incrementAndGet();
+                                    return null;
+                                } else if (name.equals("hashCode")) {
+                                    return Integer.valueOf(System.identityHashCode(proxy));
+                                } else if (name.equals("equals")) {
+                                    return Boolean.valueOf(proxy == args[0]);
+                                }
+                                return "pinning counter";
+                            }
+                        });
+                streamClass.getMethod("onEvent", String.class, consumerClass)
+                        .invoke(stream, PINNED_EVENT, counter);
+                streamClass.getMethod("startAsync").invoke(stream);
+            } catch (Exception e) {
+                stream = null;
+            }
+        }
+
+        /**
+         * True if <code>start</code> managed to start recording.
+         */
+        boolean isRecording() {
+            return stream != null;
+        }
+
+        /**
+         * Number of events counted.  Only complete once <code>stop</code>
+         * has returned, since events are delivered in batches.
+         */
+        long getEvents() {
+            return events.get();
+        }
+
+        /**
+         * Stops recording, after the events recorded so far have all been
+         * counted.
+         */
+        void stop() {
+            if (stream != null) {
+                try {
+                    // Closing right away would drop the events not delivered yet
+                    stream.getClass().getMethod("stop").invoke(stream);
+                } catch (Exception e) {
+                    // Nothing to do...
+                }
+                try {
+                    stream.getClass().getMethod("close").invoke(stream);
+                } catch (Exception e) {
+                    // Nothing to do...
+                }
+                stream = null;
+            }
+        }
+    }
+}